@@ -0,0 +1,128 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks BlindIndex's word splitting, and that its tokens find the right posts once they have been
+ * ingested into an in-memory db.
+ */
+public class BlindIndexTest extends TestCase {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String[] LIST_COLUMNS = { TableMapping.COLUMN_ID, GetItemsService.COLUMN_USER_ID
+                                                 , GetItemsService.COLUMN_TITLE };
+
+    private SQLiteDatabase db;
+    private File directory;
+    private BlobStore bodies;
+    private SessionCrypto crypto;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create( null );
+        GetItemsService.createSchema( db );
+
+        directory = new File( System.getProperty( "java.io.tmpdir" ), "BlindIndexTest" );
+        directory.mkdirs();
+        for ( File each : directory.listFiles() ) each.delete();
+        bodies = new BlobStore( directory, db, Endpoints.POSTS );
+
+        crypto = new SessionCrypto();
+        crypto.newKey();
+    }
+
+    @Override protected void tearDown() throws Exception {
+        bodies.close();
+        db.close();
+        for ( File each : directory.listFiles() ) each.delete();
+        directory.delete();
+        super.tearDown();
+    }
+
+    // writes one post per pair of title and body, with ids from 1.
+    private void ingest(String... titlesAndBodies) throws Exception {
+        StringBuilder json = new StringBuilder( "[" );
+        for ( int i = 0; i < titlesAndBodies.length; i += 2 ) {
+            json.append( i == 0 ? "" : "," )
+                .append( "{\"userId\":1,\"id\":" ).append( i / 2 + 1 )
+                .append( ",\"title\":\"" ).append( titlesAndBodies[ i ] )
+                .append( "\",\"body\":\"" ).append( titlesAndBodies[ i + 1 ] ).append( "\"}" );
+        }
+        final BulkRowWriter writer = new BulkRowWriter( db, Endpoints.POSTS, bodies, 10 );
+        JsonParser parser = JSON_FACTORY.createParser( json.append( ']' ).toString() );
+        try {
+            new IngestPipeline( Endpoints.POSTS, crypto, null, 2 ).run( parser, new IngestPipeline.RecordSink() {
+                @Override public void write(IngestPipeline.Record record) throws IOException {
+                    writer.write( record );
+                }
+            } );
+            writer.finish();
+        } finally {
+            parser.close();
+        }
+    }
+
+    // the ids of the posts found by the query, as GetPostBinder.search() runs it.
+    private List<Integer> search(SessionCrypto searcher, String query) throws Exception {
+        Set<String> words = BlindIndex.words( query );
+        long[] values = BlindIndex.tokens( searcher, words );
+        String[] tokens = new String[ values.length ];
+        for ( int i = 0; i < values.length; i++ ) tokens[ i ] = String.valueOf( values[ i ] );
+
+        Cursor cursor = db.rawQuery( BlindIndex.searchSql( Endpoints.POSTS, LIST_COLUMNS, tokens.length ), tokens );
+        List<Integer> ids = new ArrayList<Integer>();
+        while ( cursor.moveToNext() ) ids.add( cursor.getInt( 0 ) );
+        cursor.close();
+        return ids;
+    }
+
+    public void testWordsAreNormalisedAndDistinct() {
+        Set<String> words = BlindIndex.words( "Hello, hello WORLD - a b2 x!", null, "world again" );
+
+        assertEquals( Arrays.asList( "hello", "world", "b2", "again" ), new ArrayList<String>( words ) );
+    }
+
+    public void testSearchFindsPostsHoldingEveryWord() throws Exception {
+        ingest( "The quick fox", "jumps over the dog"
+              , "A slow fox", "sleeps all day"
+              , "Quick thinking", "with no animals at all" );
+
+        assertEquals( Arrays.asList( 1, 2 ), search( crypto, "fox" ) );
+        assertEquals( Arrays.asList( 1 ), search( crypto, "QUICK fox" ) );
+        // words from the title and the body are indexed together.
+        assertEquals( Arrays.asList( 1 ), search( crypto, "fox dog" ) );
+        assertEquals( Arrays.asList( 1, 3 ), search( crypto, "quick" ) );
+        assertTrue( search( crypto, "fox cat" ).isEmpty() );
+    }
+
+    /** the tokens are keyed, so another key finds nothing. */
+    public void testOtherKeyFindsNothing() throws Exception {
+        ingest( "The quick fox", "jumps" );
+
+        SessionCrypto other = new SessionCrypto();
+        other.newKey();
+        assertTrue( search( other, "fox" ).isEmpty() );
+    }
+
+    /** rewriting a post replaces its tokens, rather than adding to them. */
+    public void testRewrittenPostLosesOldWords() throws Exception {
+        ingest( "The quick fox", "jumps" );
+        ingest( "The lazy dog", "sleeps" );
+
+        assertTrue( search( crypto, "fox" ).isEmpty() );
+        assertEquals( Arrays.asList( 1 ), search( crypto, "lazy" ) );
+    }
+}
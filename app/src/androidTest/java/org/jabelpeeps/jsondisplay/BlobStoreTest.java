@@ -0,0 +1,102 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks that BlobStore gives back what was appended, before and after a compaction, using an
+ * in-memory db and a scratch directory.
+ */
+public class BlobStoreTest extends TestCase {
+
+    private static final String BODY_OFFSET = TableMapping.offsetColumn( GetItemsService.COLUMN_BODY );
+    private static final String BODY_LENGTH = TableMapping.lengthColumn( GetItemsService.COLUMN_BODY );
+
+    private SQLiteDatabase db;
+    private File directory;
+    private BlobStore store;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create( null );
+        GetItemsService.createSchema( db );
+
+        directory = new File( System.getProperty( "java.io.tmpdir" ), "BlobStoreTest" );
+        directory.mkdirs();
+        for ( File each : directory.listFiles() ) each.delete();
+
+        store = new BlobStore( directory, db, Endpoints.POSTS );
+    }
+
+    @Override protected void tearDown() throws Exception {
+        store.close();
+        db.close();
+        for ( File each : directory.listFiles() ) each.delete();
+        directory.delete();
+        super.tearDown();
+    }
+
+    // appends the value and points the post at it, as BulkRowWriter would.
+    private void put(int id, byte[] value) throws Exception {
+        long offset = store.append( value );
+        store.flush();
+        db.execSQL( "INSERT OR REPLACE INTO posts (_id, " + BODY_OFFSET + ", " + BODY_LENGTH + ") VALUES (?, ?, ?)"
+                  , new Object[] { id, offset, value.length } );
+    }
+
+    private byte[] get(int id) throws Exception {
+        ByteBuffer view = store.get( id, GetItemsService.COLUMN_BODY );
+        if ( view == null ) return null;
+
+        byte[] bytes = new byte[ view.remaining() ];
+        view.get( bytes );
+        return bytes;
+    }
+
+    private static byte[] value(int seed, int length) {
+        byte[] bytes = new byte[ length ];
+        Arrays.fill( bytes, (byte) seed );
+        return bytes;
+    }
+
+    public void testReadsBackWhatWasAppended() throws Exception {
+        put( 1, value( 1, 100 ) );
+        put( 2, value( 2, 300 ) );
+
+        assertTrue( Arrays.equals( value( 1, 100 ), get( 1 ) ) );
+        assertTrue( Arrays.equals( value( 2, 300 ), get( 2 ) ) );
+        assertNull( get( 3 ) );
+    }
+
+    /** replacing or deleting every value should trigger a compaction that keeps only the live ones. */
+    public void testCompactionKeepsLiveValues() throws Exception {
+        for ( int i = 1; i <= 10; i++ ) put( i, value( i, 20000 ) );
+        // every post is rewritten, leaving its first value as garbage - and one is deleted.
+        for ( int i = 1; i <= 10; i++ ) put( i, value( i + 100, 20000 ) );
+        db.delete( "posts", "_id = 10", null );
+
+        assertTrue( store.compactIfWasteful() );
+        assertEquals( 9 * 20000, store.size() );
+
+        for ( int i = 1; i < 10; i++ ) assertTrue( Arrays.equals( value( i + 100, 20000 ), get( i ) ) );
+        assertNull( get( 10 ) );
+
+        // and the store re-opens onto the new generation.
+        store.close();
+        store = new BlobStore( directory, db, Endpoints.POSTS );
+        assertTrue( Arrays.equals( value( 101, 20000 ), get( 1 ) ) );
+        assertEquals( 1, directory.listFiles().length );
+    }
+
+    public void testSmallStoreIsLeftAlone() throws Exception {
+        put( 1, value( 1, 100 ) );
+        put( 1, value( 2, 100 ) );
+
+        assertFalse( store.compactIfWasteful() );
+    }
+}
@@ -0,0 +1,114 @@
+package org.jabelpeeps.jsondisplay;
+
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks that each CryptoEngine gives back what it encrypted, and that SessionCrypto keeps values
+ * from either engine readable whichever one is writing.
+ */
+public class CryptoEngineTest extends TestCase {
+
+    private static final String TEXT = "quia et suscipit\nsuscipit recusandae \u2013 \u00fcn\u00efcode \u2713";
+
+    // round trips the text through both of the engine's forms.
+    private static void assertRoundTrips(CryptoEngine engine) throws Exception {
+        String scrambled = engine.encrypt( TEXT );
+        assertFalse( scrambled.contains( "suscipit" ) );
+        assertEquals( TEXT, engine.decrypt( scrambled ) );
+
+        assertEquals( TEXT, engine.open( ByteBuffer.wrap( engine.seal( TEXT ) ) ) );
+        assertEquals( "", engine.open( ByteBuffer.wrap( engine.seal( "" ) ) ) );
+    }
+
+    public void testCbcHmacRoundTrip() throws Exception {
+        assertRoundTrips( new CbcHmacEngine( AesCbcWithIntegrity.generateKey() ) );
+    }
+
+    public void testGcmRoundTrip() throws Exception {
+        if ( !GcmEngine.isAvailable() ) return;
+
+        GcmEngine engine = new GcmEngine( new SecretKeySpec( new byte[ 16 ], "AES" ) );
+        assertRoundTrips( engine );
+        assertTrue( GcmEngine.wrote( engine.encrypt( TEXT ) ) );
+    }
+
+    /** a sealed value is read in place, so it must be found at its offset in a larger (mapped) buffer. */
+    public void testOpensSealedValueWithinLargerBuffer() throws Exception {
+        CryptoEngine engine = new CbcHmacEngine( AesCbcWithIntegrity.generateKey() );
+        byte[] sealed = engine.seal( TEXT );
+        ByteBuffer file = ByteBuffer.allocate( sealed.length + 20 );
+        file.position( 10 );
+        file.put( sealed );
+
+        file.limit( 10 + sealed.length ).position( 10 );
+        assertEquals( TEXT, engine.open( file.slice() ) );
+    }
+
+    public void testTamperedValueIsRejected() throws Exception {
+        CryptoEngine engine = new CbcHmacEngine( AesCbcWithIntegrity.generateKey() );
+        byte[] sealed = engine.seal( TEXT );
+        sealed[ sealed.length - 1 ] ^= 1;
+
+        try {
+            engine.open( ByteBuffer.wrap( sealed ) );
+            fail( "a tampered value was opened" );
+        } catch ( GeneralSecurityException e ) {
+            // expected.
+        }
+    }
+
+    /** values written by either engine, as Strings or sealed, stay readable as the engine is
+     *  switched - and in a later session under the same key. */
+    public void testValuesFromEitherEngineStayReadable() throws Exception {
+        SessionCrypto crypto = new SessionCrypto();
+        String key = crypto.newKey();
+
+        String cbcText = crypto.encrypt( TEXT );
+        byte[] cbcSealed = crypto.seal( TEXT );
+
+        boolean gcm = crypto.setGcm( true );
+        String gcmText = crypto.encrypt( TEXT );
+        byte[] gcmSealed = crypto.seal( TEXT );
+        assertEquals( gcm, GcmEngine.wrote( gcmText ) );
+        assertEquals( gcm ? GcmEngine.FORMAT : CbcHmacEngine.FORMAT, gcmSealed[ 0 ] );
+
+        assertAllReadable( crypto, cbcText, cbcSealed, gcmText, gcmSealed );
+
+        crypto.setGcm( false );
+        assertFalse( GcmEngine.wrote( crypto.encrypt( TEXT ) ) );
+        assertAllReadable( crypto, cbcText, cbcSealed, gcmText, gcmSealed );
+
+        SessionCrypto later = new SessionCrypto();
+        later.unlock( key );
+        assertAllReadable( later, cbcText, cbcSealed, gcmText, gcmSealed );
+    }
+
+    private static void assertAllReadable(SessionCrypto crypto, String cbcText, byte[] cbcSealed
+                                          , String gcmText, byte[] gcmSealed) throws Exception {
+        assertEquals( TEXT, crypto.decrypt( cbcText ) );
+        assertEquals( TEXT, crypto.decrypt( gcmText ) );
+        assertEquals( TEXT, crypto.open( ByteBuffer.wrap( cbcSealed ) ) );
+        assertEquals( TEXT, crypto.open( ByteBuffer.wrap( gcmSealed ) ) );
+    }
+
+    public void testLockedSessionRefusesToDecrypt() throws Exception {
+        SessionCrypto crypto = new SessionCrypto();
+        crypto.newKey();
+        String scrambled = crypto.encrypt( TEXT );
+        crypto.wipe();
+
+        try {
+            crypto.decrypt( scrambled );
+            fail( "a locked session decrypted a value" );
+        } catch ( IllegalStateException e ) {
+            // expected.
+        }
+    }
+}
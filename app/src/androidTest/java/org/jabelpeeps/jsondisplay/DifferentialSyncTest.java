@@ -0,0 +1,257 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Syncs posts into an in-memory db through GetItemsService.sync(), checking that a differential
+ * re-sync finds the changed and missing posts, writes and deletes only those, and brings the
+ * snapshot up to date to match.
+ */
+public class DifferentialSyncTest extends AndroidTestCase {
+
+    private SQLiteDatabase db;
+    private File directory;
+    private BlobStore bodies;
+    private SessionCrypto crypto;
+    private SharedPreferences prefs;
+    /** the snapshot left by the last sync. */
+    private PostSnapshot snapshot;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create( null );
+        GetItemsService.createSchema( db );
+
+        directory = new File( getContext().getCacheDir(), "DifferentialSyncTest" );
+        directory.mkdirs();
+        for ( File each : directory.listFiles() ) each.delete();
+        bodies = new BlobStore( directory, db, Endpoints.POSTS );
+
+        prefs = getContext().getSharedPreferences( "DifferentialSyncTest", Context.MODE_PRIVATE );
+        prefs.edit().clear().commit();
+        // locked, so that the first sync writes everything under a new key.
+        crypto = new SessionCrypto();
+    }
+
+    @Override protected void tearDown() throws Exception {
+        bodies.close();
+        db.close();
+        for ( File each : directory.listFiles() ) each.delete();
+        directory.delete();
+        prefs.edit().clear().commit();
+        super.tearDown();
+    }
+
+    /** the whole of one Json array, as a single response (or page) would carry it. */
+    static final class StringPayload implements IngestPipeline.Payload {
+        private final String json;
+        private final boolean cached;
+        private boolean taken;
+
+        StringPayload(String array) { this( array, false ); }
+
+        StringPayload(String array, boolean unchanged) {
+            json = array;
+            cached = unchanged;
+        }
+
+        @Override public InputStream next() throws IOException {
+            if ( taken ) return null;
+
+            taken = true;
+            return new ByteArrayInputStream( json.getBytes( "UTF-8" ) );
+        }
+
+        @Override public boolean unchanged() { return cached; }
+
+        @Override public void close() {}
+    }
+
+    // the posts with the given ids, each titled "title <id>" unless it is given in titles.
+    static String posts(int[] ids, String... titles) {
+        StringBuilder json = new StringBuilder( "[" );
+        for ( int i = 0; i < ids.length; i++ ) {
+            String title = ( i < titles.length && titles[ i ] != null ) ? titles[ i ] : "title " + ids[ i ];
+            json.append( i == 0 ? "" : "," )
+                .append( "{\"userId\":" ).append( ids[ i ] % 3 ).append( ",\"id\":" ).append( ids[ i ] )
+                .append( ",\"title\":\"" ).append( title )
+                .append( "\",\"body\":\"body " ).append( ids[ i ] ).append( "\"}" );
+        }
+        return json.append( ']' ).toString();
+    }
+
+    static int[] range(int from, int to) {
+        int[] ids = new int[ to - from + 1 ];
+        for ( int i = 0; i < ids.length; i++ ) ids[ i ] = from + i;
+        return ids;
+    }
+
+    private GetItemsService.SyncResult sync(String json) throws Exception {
+        GetItemsService.SyncResult result =
+                GetItemsService.sync( db, bodies, crypto, prefs, new StringPayload( json ), snapshot );
+        assertNotNull( "the sync failed", result );
+        snapshot = result.snapshot;
+        return result;
+    }
+
+    private int[] idsInDb() {
+        Cursor cursor = db.query( GetItemsService.TABLE_NAME, new String[] { TableMapping.COLUMN_ID }
+                                , null, null, null, null, TableMapping.COLUMN_ID );
+        int[] ids = new int[ cursor.getCount() ];
+        for ( int i = 0; cursor.moveToNext(); i++ ) ids[ i ] = cursor.getInt( 0 );
+        cursor.close();
+        return ids;
+    }
+
+    private String titleInDb(int id) throws Exception {
+        Cursor cursor = db.query( GetItemsService.TABLE_NAME, new String[] { GetItemsService.COLUMN_TITLE }
+                                , TableMapping.COLUMN_ID + " = " + id, null, null, null, null );
+        try {
+            assertTrue( cursor.moveToFirst() );
+            return crypto.decrypt( cursor.getString( 0 ) );
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // the (decrypted) title of the given post in the snapshot, or null if it is not there.
+    private String titleInSnapshot(int id) throws Exception {
+        Cursor cursor = snapshot.cursorFor( 0 );
+        try {
+            while ( cursor.moveToNext() )
+                if ( cursor.getInt( GetItemsService.COLUMN_POST_ID_INDEX ) == id )
+                    return crypto.decrypt( cursor.getString( GetItemsService.COLUMN_TITLE_INDEX ) );
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testFirstSyncReplacesEverythingUnderANewKey() throws Exception {
+        GetItemsService.SyncResult result = sync( posts( range( 1, 20 ) ) );
+
+        assertTrue( result.rekeyed );
+        assertTrue( crypto.isUnlocked() );
+        assertTrue( prefs.contains( "db_key" ) );
+        assertEquals( 20, result.changedIds.length );
+        assertEquals( 20, snapshot.size() );
+        assertEquals( 7, result.postCounts.get( 1 ) );
+    }
+
+    public void testIdenticalResyncWritesNothing() throws Exception {
+        sync( posts( range( 1, 50 ) ) );
+        PostSnapshot before = snapshot;
+        GetItemsService.SyncResult result = sync( posts( range( 1, 50 ) ) );
+
+        assertFalse( result.rekeyed );
+        assertFalse( result.changed() );
+        assertEquals( 0, result.changedIds.length );
+        assertEquals( 0, result.deletedIds.length );
+        // and the snapshot is left as it was, rather than rebuilt.
+        assertSame( before, snapshot );
+    }
+
+    /** only the changed and new posts are written, and only the missing one deleted. */
+    public void testResyncWritesChangesAndDeletesMissingPosts() throws Exception {
+        sync( posts( range( 1, 50 ) ) );
+
+        // post 20 goes, 7 gets a new title and 51 arrives.
+        int[] ids = new int[ 50 ];
+        for ( int i = 0, id = 1; id <= 51; id++ ) if ( id != 20 ) ids[ i++ ] = id;
+        String[] titles = new String[ 50 ];
+        titles[ 6 ] = "retitled";
+        GetItemsService.SyncResult result = sync( posts( ids, titles ) );
+
+        assertTrue( Arrays.equals( new int[] { 7, 51 }, result.changedIds ) );
+        assertTrue( Arrays.equals( new int[] { 20 }, result.deletedIds ) );
+
+        assertTrue( Arrays.equals( ids, idsInDb() ) );
+        assertEquals( "retitled", titleInDb( 7 ) );
+        assertEquals( "title 8", titleInDb( 8 ) );
+        assertEquals( "title 51", titleInDb( 51 ) );
+
+        assertEquals( 50, snapshot.size() );
+        assertEquals( "retitled", titleInSnapshot( 7 ) );
+        assertEquals( "title 51", titleInSnapshot( 51 ) );
+        assertNull( titleInSnapshot( 20 ) );
+    }
+
+    /** rows left without a digest (as after a migration) never match, so are all rewritten. */
+    public void testRowsWithoutDigestsAreRewritten() throws Exception {
+        sync( posts( range( 1, 30 ) ) );
+        db.execSQL( "UPDATE " + GetItemsService.TABLE_NAME + " SET digest = NULL" );
+
+        GetItemsService.SyncResult result = sync( posts( range( 1, 30 ) ) );
+        assertEquals( 30, result.changedIds.length );
+        assertEquals( 0, result.deletedIds.length );
+    }
+
+    public void testEmptyResyncDeletesEverything() throws Exception {
+        sync( posts( range( 1, 10 ) ) );
+        GetItemsService.SyncResult result = sync( "[]" );
+
+        assertTrue( Arrays.equals( range( 1, 10 ), result.deletedIds ) );
+        assertEquals( 0, idsInDb().length );
+        assertEquals( 0, snapshot.size() );
+    }
+
+    /** a write that fails with an unchecked SQLiteException must fail the sync (which the service
+     *  then reports through dataFailed()), rather than being thrown out of the service's thread. */
+    public void testFailingWriteFailsTheSync() throws Exception {
+        sync( posts( range( 1, 20 ) ) );
+        db.execSQL( "CREATE TRIGGER fail_post_25 BEFORE INSERT ON " + GetItemsService.TABLE_NAME
+                    + " WHEN NEW._id = 25 BEGIN SELECT RAISE(ABORT, 'disk full'); END" );
+
+        assertNull( GetItemsService.sync( db, bodies, crypto, prefs
+                                        , new StringPayload( posts( range( 1, 30 ) ) ), snapshot ) );
+        // the posts from before are still there to be used.
+        assertEquals( "title 20", titleInDb( 20 ) );
+    }
+
+    /** a full reload that fails part way must leave the old rows, and the key they were written
+     *  under, just as they were. */
+    public void testFailedFullReloadKeepsOldKeyAndRows() throws Exception {
+        sync( posts( range( 1, 20 ) ) );
+        String oldKey = prefs.getString( "db_key", null );
+        db.execSQL( "CREATE TRIGGER fail_post_25 BEFORE INSERT ON " + GetItemsService.TABLE_NAME
+                    + " WHEN NEW._id = 25 BEGIN SELECT RAISE(ABORT, 'disk full'); END" );
+
+        // without a key to compare against, the sync replaces everything.
+        crypto.wipe();
+        assertNull( GetItemsService.sync( db, bodies, crypto, prefs
+                                        , new StringPayload( posts( range( 1, 30 ) ) ), snapshot ) );
+
+        assertEquals( oldKey, prefs.getString( "db_key", null ) );
+        assertFalse( crypto.isUnlocked() );
+        assertTrue( Arrays.equals( range( 1, 20 ), idsInDb() ) );
+
+        crypto.unlock( oldKey );
+        assertEquals( "title 20", titleInDb( 20 ) );
+    }
+
+    /** a page that the db already holds is only counted - not digested or written - and its
+     *  posts are not taken to have gone. */
+    public void testUnchangedPageIsNotRewritten() throws Exception {
+        sync( posts( range( 1, 30 ) ) );
+
+        // (the title differs only to show that the page is not even digested.)
+        String[] titles = new String[ 30 ];
+        titles[ 6 ] = "retitled";
+        GetItemsService.SyncResult result = GetItemsService.sync( db, bodies, crypto, prefs
+                , new StringPayload( posts( range( 1, 30 ), titles ), true ), snapshot );
+
+        assertFalse( result.changed() );
+        assertEquals( 10, result.postCounts.get( 1 ) );
+        assertEquals( "title 7", titleInDb( 7 ) );
+    }
+}
@@ -0,0 +1,159 @@
+package org.jabelpeeps.jsondisplay;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs posts through IngestPipeline's serial and pipelined paths, checking the order the rows are
+ * written in, what they hold, and how failures at either end are passed back to the caller.
+ */
+public class IngestPipelineTest extends TestCase {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final int TITLE = 2;
+    private static final int BODY = 3;
+
+    private SessionCrypto crypto;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        crypto = new SessionCrypto();
+        crypto.newKey();
+    }
+
+    // the posts with ids 1 to count, as a Json array without its closing bracket.
+    private static StringBuilder openArray(int count) {
+        StringBuilder json = new StringBuilder( "[" );
+        for ( int id = 1; id <= count; id++ ) {
+            if ( id > 1 ) json.append( ',' );
+            json.append( "{\"userId\":" ).append( id % 10 ).append( ",\"id\":" ).append( id )
+                .append( ",\"title\":\"title " ).append( id ).append( "\",\"body\":\"body " ).append( id )
+                .append( "\"}" );
+        }
+        return json;
+    }
+
+    private static String posts(int count) { return openArray( count ).append( ']' ).toString(); }
+
+    /** keeps the records written, and can be set to fail on one of them. */
+    private static final class Collector implements IngestPipeline.RecordSink {
+        final List<IngestPipeline.Record> records = new ArrayList<IngestPipeline.Record>();
+        int failAt = -1;
+
+        @Override public void write(IngestPipeline.Record record) throws IOException {
+            if ( records.size() == failAt ) throw new IOException( "sink failed at " + failAt );
+            records.add( record );
+        }
+    }
+
+    private int run(String json, int workers, Collector sink) throws Exception {
+        JsonParser parser = JSON_FACTORY.createParser( json );
+        try {
+            return new IngestPipeline( Endpoints.POSTS, crypto, null, workers ).run( parser, sink );
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static void assertInOrder(Collector sink, int count) {
+        assertEquals( count, sink.records.size() );
+        for ( int i = 0; i < count; i++ ) assertEquals( i + 1, sink.records.get( i ).id() );
+    }
+
+    public void testPipelinedWritesRowsInParsedOrder() throws Exception {
+        Collector sink = new Collector();
+        assertEquals( 2000, run( posts( 2000 ), 4, sink ) );
+        assertInOrder( sink, 2000 );
+
+        // and each one arrives encrypted - the title as a String, the body sealed.
+        IngestPipeline.Record last = sink.records.get( 1999 );
+        assertFalse( last.unchanged );
+        assertEquals( "title 2000", crypto.decrypt( last.texts[ TITLE ] ) );
+        assertNull( last.texts[ BODY ] );
+        assertEquals( "body 2000", crypto.open( ByteBuffer.wrap( last.blobs[ BODY ] ) ) );
+        assertNotNull( last.tokens );
+    }
+
+    public void testSerialAndPipelinedAgree() throws Exception {
+        Collector serial = new Collector();
+        Collector pipelined = new Collector();
+        run( posts( 300 ), 0, serial );
+        run( posts( 300 ), 3, pipelined );
+
+        assertInOrder( serial, 300 );
+        assertInOrder( pipelined, 300 );
+        for ( int i = 0; i < 300; i++ )
+            assertEquals( serial.records.get( i ).digest, pipelined.records.get( i ).digest );
+    }
+
+    /** a post without a title is kept, with a null title, rather than failing the ingest. */
+    public void testMissingFieldsAreLeftNull() throws Exception {
+        Collector sink = new Collector();
+        run( "[{\"id\":1,\"userId\":2,\"title\":null}]", 2, sink );
+
+        assertEquals( 1, sink.records.size() );
+        assertNull( sink.records.get( 0 ).texts[ TITLE ] );
+        assertNull( sink.records.get( 0 ).blobs );
+    }
+
+    /** a parse failure follows every row before it down the queue, so those are all written first. */
+    public void testParserFailureArrivesAfterEarlierRows() throws Exception {
+        Collector sink = new Collector();
+        try {
+            run( openArray( 100 ).append( ",{\"id\": oops" ).toString(), 4, sink );
+            fail( "the broken Json was accepted" );
+        } catch ( IOException e ) {
+            // expected.
+        }
+        assertInOrder( sink, 100 );
+    }
+
+    public void testUnexpectedTokenFails() throws Exception {
+        for ( int workers : new int[] { 0, 2 } ) {
+            try {
+                run( "[1, 2]", workers, new Collector() );
+                fail( "an array of numbers was accepted with " + workers + " workers" );
+            } catch ( IOException e ) {
+                // expected.
+            }
+        }
+    }
+
+    /** a failing sink must stop the pipeline (rather than leave the parser blocked) and be rethrown. */
+    public void testSinkFailureStopsThePipeline() throws Exception {
+        Collector sink = new Collector();
+        sink.failAt = 10;
+        try {
+            run( posts( 5000 ), 4, sink );
+            fail( "the sink's failure was lost" );
+        } catch ( IOException e ) {
+            assertEquals( "sink failed at 10", e.getMessage() );
+        }
+        assertInOrder( sink, 10 );
+    }
+
+    /** an unchecked failure in the sink (a SQLiteException, say) is passed back just the same. */
+    public void testSinkRuntimeExceptionStopsThePipeline() throws Exception {
+        IngestPipeline.RecordSink sink = new IngestPipeline.RecordSink() {
+            @Override public void write(IngestPipeline.Record record) {
+                if ( record.id() == 10 ) throw new IllegalStateException( "locked" );
+            }
+        };
+        JsonParser parser = JSON_FACTORY.createParser( posts( 5000 ) );
+        try {
+            new IngestPipeline( Endpoints.POSTS, crypto, null, 4 ).run( parser, sink );
+            fail( "the sink's failure was lost" );
+        } catch ( IllegalStateException e ) {
+            assertEquals( "locked", e.getMessage() );
+        } finally {
+            parser.close();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.jabelpeeps.jsondisplay;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs PagedFetcher against a local server that generates pages of posts on request.
+ */
+public class PagedFetcherTest extends TestCase {
+
+    private static final Pattern PAGE_PARAMS = Pattern.compile( "_start=(\\d+)&_limit=(\\d+)" );
+
+    private MockWebServer server;
+    /** the number of requests made for each page, keyed by its _start. */
+    private final ConcurrentMap<Integer, AtomicInteger> requests = new ConcurrentHashMap<>();
+    /** the _starts of pages that fail on their first request. */
+    private final Set<Integer> failOnce =
+                            Collections.newSetFromMap( new ConcurrentHashMap<Integer, Boolean>() );
+    /** the _starts of pages that fail on every request. */
+    private final Set<Integer> failAlways =
+                            Collections.newSetFromMap( new ConcurrentHashMap<Integer, Boolean>() );
+    /** the _starts of pages whose bodies are sent slowly. */
+    private final Set<Integer> slow =
+                            Collections.newSetFromMap( new ConcurrentHashMap<Integer, Boolean>() );
+    /** whether the pages may be cached by the client. */
+    private volatile boolean cacheable;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @Override protected void tearDown() throws Exception {
+        server.shutdown();
+        super.tearDown();
+    }
+
+    // serves the posts with ids 1 to total, with or without an X-Total-Count header.
+    private void serve(final int total, final boolean countHeader) {
+        server.setDispatcher( new Dispatcher() {
+            @Override public MockResponse dispatch(RecordedRequest request) {
+                Matcher params = PAGE_PARAMS.matcher( request.getPath() );
+                if ( !params.find() ) return new MockResponse().setResponseCode( 400 );
+
+                int start = Integer.parseInt( params.group( 1 ) );
+                int limit = Integer.parseInt( params.group( 2 ) );
+
+                requests.putIfAbsent( start, new AtomicInteger() );
+                if ( requests.get( start ).incrementAndGet() == 1 && failOnce.contains( start ) )
+                    return new MockResponse().setResponseCode( 503 );
+                if ( failAlways.contains( start ) ) return new MockResponse().setResponseCode( 503 );
+
+                StringBuilder page = new StringBuilder( "[" );
+                for ( int id = start + 1; id <= Math.min( total, start + limit ); id++ ) {
+                    if ( id > start + 1 ) page.append( ',' );
+                    page.append( "{\"userId\":" ).append( id % 10 ).append( ",\"id\":" ).append( id )
+                        .append( ",\"title\":\"t" ).append( id ).append( "\",\"body\":\"b" ).append( id )
+                        .append( "\"}" );
+                }
+                MockResponse response = new MockResponse().setBody( page.append( ']' ).toString() );
+                if ( countHeader ) response.setHeader( "X-Total-Count", total );
+                if ( slow.contains( start ) ) response.throttleBody( 256, 100, TimeUnit.MILLISECONDS );
+                if ( cacheable ) response.setHeader( "Cache-Control", "max-age=60" );
+                return response;
+            }
+        } );
+    }
+
+    // serves the same posts for every page, as a server with no paging would - ids 1 to total,
+    // or just the first _limit of them if limit is honoured.
+    private void serveUnpaged(final int total, final boolean honourLimit) {
+        server.setDispatcher( new Dispatcher() {
+            @Override public MockResponse dispatch(RecordedRequest request) {
+                Matcher params = PAGE_PARAMS.matcher( request.getPath() );
+                int last = ( honourLimit && params.find() ) ? Integer.parseInt( params.group( 2 ) ) : total;
+
+                StringBuilder page = new StringBuilder( "[" );
+                for ( int id = 1; id <= last; id++ ) {
+                    if ( id > 1 ) page.append( ',' );
+                    page.append( "{\"userId\":1,\"id\":" ).append( id ).append( '}' );
+                }
+                return new MockResponse().setBody( page.append( ']' ).toString() );
+            }
+        } );
+    }
+
+    // takes pages until the fetch fails, which it should do well within maxPages.
+    private void expectFailure(PagedFetcher fetcher, int maxPages) throws IOException {
+        try {
+            for ( int i = 0; i < maxPages; i++ )
+                assertNotNull( "the fetch ended without failing", fetcher.next() );
+
+            fail( "the fetch was still going after " + maxPages + " pages" );
+
+        } catch ( IOException e ) {
+            // expected.
+        } finally {
+            fetcher.close();
+        }
+    }
+
+    // reads every page, returning the total number of posts (counted as ids) in them.
+    private int readAll(PagedFetcher fetcher, int pageSize) throws IOException {
+        int posts = 0;
+        try {
+            for ( InputStream page = fetcher.next(); page != null; page = fetcher.next() ) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[ 1024 ];
+                for ( int n = page.read( buffer ); n != -1; n = page.read( buffer ) )
+                    bytes.write( buffer, 0, n );
+
+                int count = bytes.toString( "UTF-8" ).split( "\"id\":", -1 ).length - 1;
+                assertTrue( count <= pageSize );
+                posts += count;
+            }
+        } finally {
+            fetcher.close();
+        }
+        return posts;
+    }
+
+    // reads every page, returning the number of them that were flagged as unchanged.
+    private int countUnchanged(PagedFetcher fetcher) throws IOException {
+        int unchanged = 0;
+        try {
+            for ( InputStream page = fetcher.next(); page != null; page = fetcher.next() )
+                if ( fetcher.unchanged() ) unchanged++;
+        } finally {
+            fetcher.close();
+        }
+        return unchanged;
+    }
+
+    public void testFetchesEveryPageWithoutTotalCount() throws IOException {
+        serve( 1234, false );
+        PagedFetcher fetcher = new PagedFetcher( new OkHttpClient(), server.getUrl( "/posts" ).toString(), 100, 4 );
+
+        assertEquals( 1234, readAll( fetcher, 100 ) );
+        assertEquals( 0, fetcher.getRetries() );
+    }
+
+    public void testFetchesEveryPageWithTotalCount() throws IOException {
+        serve( 1000, true );
+        PagedFetcher fetcher = new PagedFetcher( new OkHttpClient(), server.getUrl( "/posts" ).toString(), 100, 3 );
+
+        assertEquals( 1000, readAll( fetcher, 100 ) );
+    }
+
+    /** only the pages that failed should be asked for a second time. */
+    public void testRetriesOnlyFailedPages() throws IOException {
+        failOnce.add( 200 );
+        failOnce.add( 700 );
+        serve( 950, true );
+        PagedFetcher fetcher = new PagedFetcher( new OkHttpClient(), server.getUrl( "/posts" ).toString(), 100, 4 );
+
+        assertEquals( 950, readAll( fetcher, 100 ) );
+        assertEquals( 2, fetcher.getRetries() );
+
+        for ( int start = 0; start < 1000; start += 100 )
+            assertEquals( "requests for _start=" + start
+                          , failOnce.contains( start ) ? 2 : 1, requests.get( start ).get() );
+    }
+
+    /** a server that ignores _start and _limit sends every post in each page - which must fail
+     *  the fetch before the first page is handed over to be written. */
+    public void testOversizedPageFailsTheFetch() throws IOException {
+        serveUnpaged( 250, false );
+        expectFailure( new PagedFetcher( new OkHttpClient(), server.getUrl( "/posts" ).toString(), 100, 4 ), 1 );
+    }
+
+    /** one that honours only _limit sends the same full page forever - so the second page fails. */
+    public void testRepeatedPageFailsTheFetch() throws IOException {
+        serveUnpaged( 250, true );
+        expectFailure( new PagedFetcher( new OkHttpClient(), server.getUrl( "/posts" ).toString(), 100, 4 ), 2 );
+    }
+
+    /** the short page marks the end, so a page after it that fails must not fail the fetch - even
+     *  when its failure arrives first. */
+    public void testFailedPageBeyondTheEndIsIgnored() throws IOException {
+        failAlways.add( 300 );
+        slow.add( 200 );
+        serve( 250, false );
+        PagedFetcher fetcher = new PagedFetcher( new OkHttpClient(), server.getUrl( "/posts" ).toString(), 100, 4 );
+
+        assertEquals( 250, readAll( fetcher, 100 ) );
+    }
+
+    public void testFailedPageWithinTheCollectionFailsTheFetch() throws IOException {
+        failAlways.add( 100 );
+        serve( 250, false );
+        // pages 0 and 2 may be handed over first, but no more.
+        expectFailure( new PagedFetcher( new OkHttpClient(), server.getUrl( "/posts" ).toString(), 100, 4 ), 3 );
+    }
+
+    /** the pages go through the client's cache, and those that come from it are flagged as such. */
+    public void testCachedPagesAreFlaggedUnchanged() throws IOException {
+        cacheable = true;
+        serve( 250, false );
+        String url = server.getUrl( "/posts" ).toString();
+        OkHttpClient client = new OkHttpClient();
+        client.setCache( new Cache( new File( System.getProperty( "java.io.tmpdir" ), "PagedFetcherTest" )
+                                  , 1024 * 1024 ) );
+        try {
+            assertEquals( 0, countUnchanged( new PagedFetcher( client, url, 100, 2 ) ) );
+            assertEquals( 3, countUnchanged( new PagedFetcher( client, url, 100, 2 ) ) );
+        } finally {
+            client.getCache().delete();
+        }
+    }
+
+    /** anything thrown by the client must fail the fetch, not leave the reader waiting for the page. */
+    public void testRuntimeExceptionFailsThePage() throws IOException {
+        serve( 500, true );
+        OkHttpClient client = new OkHttpClient();
+        client.interceptors().add( new Interceptor() {
+            @Override public Response intercept(Chain chain) {
+                throw new IllegalStateException( "broken client" );
+            }
+        } );
+        expectFailure( new PagedFetcher( client, server.getUrl( "/posts" ).toString(), 100, 2 ), 1 );
+    }
+}
@@ -0,0 +1,100 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Checks the db schema built by GetItemsService's migrations, using a throwaway in-memory db.
+ */
+public class PostSchemaTest extends TestCase {
+
+    private SQLiteDatabase db;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create( null );
+    }
+
+    @Override protected void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    /** the per-user loaders' selection should be answered from the userId index, not a table scan. */
+    public void testPerUserQueryUsesIndex() {
+        GetItemsService.createSchema( db );
+
+        Cursor plan = db.rawQuery( "EXPLAIN QUERY PLAN SELECT * FROM " + GetItemsService.TABLE_NAME
+                                    + " WHERE " + GetItemsService.COLUMN_USER_ID + " = 3", null );
+        StringBuilder details = new StringBuilder();
+
+        while ( plan.moveToNext() )
+            details.append( plan.getString( plan.getColumnIndex( "detail" ) ) ).append( '\n' );
+        plan.close();
+
+        assertTrue( "Query plan was:\n" + details,
+                    details.toString().contains( "INDEX posts_userId" ) );
+    }
+
+    /** upgrading a version 1 db should keep its posts, and summarise them for the new tables. */
+    public void testUpgradeFromVersionOneKeepsData() {
+        db.execSQL( "CREATE TABLE posts (_id INTEGER PRIMARY KEY, userId INTEGER, title TEXT, body TEXT )" );
+        db.execSQL( "INSERT INTO posts VALUES (1, 7, 't1', 'b1'), (2, 7, 't2', 'b2'), (3, 9, 't3', 'b3')" );
+
+        GetItemsService.migrate( db, 1, GetItemsService.DB_VERSION );
+
+        Cursor posts = db.rawQuery( "SELECT COUNT(*) FROM posts", null );
+        posts.moveToFirst();
+        assertEquals( 3, posts.getInt( 0 ) );
+        posts.close();
+
+        Cursor users = db.rawQuery( "SELECT userId, post_count FROM users ORDER BY userId", null );
+        assertEquals( 2, users.getCount() );
+        users.moveToFirst();
+        assertEquals( 7, users.getInt( 0 ) );
+        assertEquals( 2, users.getInt( 1 ) );
+        users.close();
+    }
+
+    /** the rows kept by an upgrade are left without digests, to be rewritten (and tokenised, with
+     *  their bodies moved out) - so an unchanged response must not be taken as current, nor an
+     *  unchanged page skimmed over. */
+    public void testUpgradeRewritesRowsDespiteUnchangedResponse() throws Exception {
+        db.execSQL( "CREATE TABLE posts (_id INTEGER PRIMARY KEY, userId INTEGER, title TEXT, body TEXT )" );
+        GetItemsService.migrate( db, 1, 5 );
+        db.execSQL( "INSERT INTO posts (_id, userId, title, body, digest)"
+                    + " VALUES (1, 1, 't1', 'b1', 11), (2, 2, 't2', 'b2', 12), (3, 0, 't3', 'b3', 13)" );
+
+        GetItemsService.migrate( db, 5, GetItemsService.DB_VERSION );
+        // the single response path asks for the data again, rather than keep the old rows.
+        assertTrue( GetItemsService.rewritePending( db ) );
+
+        SessionCrypto crypto = new SessionCrypto();
+        crypto.newKey();
+        File directory = new File( System.getProperty( "java.io.tmpdir" ), "PostSchemaTest" );
+        directory.mkdirs();
+        BlobStore bodies = new BlobStore( directory, db, Endpoints.POSTS );
+        try {
+            // and the paged path rewrites the rows of a page, even one that is unchanged.
+            String page = DifferentialSyncTest.posts( DifferentialSyncTest.range( 1, 3 ) );
+            GetItemsService.SyncResult result = GetItemsService.sync( db, bodies, crypto, null
+                                    , new DifferentialSyncTest.StringPayload( page, true ), null );
+            assertNotNull( result );
+            assertEquals( 3, result.changedIds.length );
+        } finally {
+            bodies.close();
+            for ( File each : directory.listFiles() ) each.delete();
+            directory.delete();
+        }
+        assertFalse( GetItemsService.rewritePending( db ) );
+
+        Cursor oldBodies = db.rawQuery( "SELECT COUNT(*) FROM posts WHERE body IS NOT NULL", null );
+        oldBodies.moveToFirst();
+        assertEquals( 0, oldBodies.getInt( 0 ) );
+        oldBodies.close();
+    }
+}
@@ -0,0 +1,49 @@
+package org.jabelpeeps.jsondisplay;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks which refresh requests RefreshScheduler serves, merges and throttles.
+ */
+public class RefreshSchedulerTest extends TestCase {
+
+    private static final long INTERVAL_MS = 60 * 1000;
+
+    private RefreshScheduler scheduler;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        scheduler = new RefreshScheduler( INTERVAL_MS );
+    }
+
+    public void testRequestsWhileInFlightAreMerged() {
+        assertEquals( RefreshScheduler.Outcome.SERVED, scheduler.request( false, false ) );
+        assertEquals( RefreshScheduler.Outcome.MERGED, scheduler.request( false, true ) );
+        assertEquals( RefreshScheduler.Outcome.MERGED, scheduler.request( true, false ) );
+        assertTrue( scheduler.isInFlight() );
+    }
+
+    public void testRecentSuccessThrottlesUnlessForced() {
+        scheduler.request( false, false );
+        scheduler.finished( true );
+
+        assertEquals( RefreshScheduler.Outcome.THROTTLED, scheduler.request( false, true ) );
+        assertEquals( RefreshScheduler.Outcome.SERVED, scheduler.request( true, true ) );
+    }
+
+    /** a new service instance, with nothing loaded, must not be throttled by its predecessor's refresh. */
+    public void testRequesterWithoutDataIsNeverThrottled() {
+        scheduler.request( false, false );
+        scheduler.finished( true );
+
+        assertEquals( RefreshScheduler.Outcome.SERVED, scheduler.request( false, false ) );
+        assertEquals( 0, scheduler.getThrottled() );
+    }
+
+    public void testFailureCanBeRetriedStraightAway() {
+        scheduler.request( false, false );
+        scheduler.finished( false );
+
+        assertEquals( RefreshScheduler.Outcome.SERVED, scheduler.request( false, true ) );
+    }
+}
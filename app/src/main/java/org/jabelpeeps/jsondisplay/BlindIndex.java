@@ -0,0 +1,81 @@
+package org.jabelpeeps.jsondisplay;
+
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * <p>
+ * A keyword index over encrypted text, that can be searched without decrypting anything.
+ * </p><p>
+ * Each word of a row's searchable columns is normalised (lower-cased, and split on anything that
+ * is not a letter or digit) and turned into a token with a keyed hash, and the tokens are stored
+ * against the row's id in the mapping's token table.  A search tokenises its words in the same way
+ * and finds the rows holding every one of them through the index on the token column - so only
+ * the matching rows ever need decrypting.
+ * </p><p>
+ * Without the key, the tokens reveal no words, only which rows share a word.
+ * </p> */
+final class BlindIndex {
+
+    /** words shorter than this are too common to be worth indexing. */
+    static final int MIN_WORD_LENGTH = 2;
+
+    private BlindIndex() {}
+
+    /** the distinct normalised words in the given texts, in order of first appearance. */
+    static Set<String> words(String... texts) {
+        Set<String> words = new LinkedHashSet<String>();
+
+        for ( String text : texts ) {
+            if ( text == null ) continue;
+            int start = -1;
+
+            for ( int i = 0; i <= text.length(); i++ ) {
+                boolean wordChar = i < text.length() && Character.isLetterOrDigit( text.charAt( i ) );
+
+                if ( wordChar && start < 0 ) start = i;
+                else if ( !wordChar && start >= 0 ) {
+                    if ( i - start >= MIN_WORD_LENGTH )
+                        words.add( text.substring( start, i ).toLowerCase( Locale.ROOT ) );
+                    start = -1;
+                }
+            }
+        }
+        return words;
+    }
+
+    /** the tokens for the given words, in the same order. */
+    static long[] tokens(SessionCrypto crypto, Set<String> words) throws GeneralSecurityException {
+        long[] tokens = new long[ words.size() ];
+        int i = 0;
+        for ( String each : words ) tokens[ i++ ] = crypto.searchToken( each );
+        return tokens;
+    }
+
+    /** <p>
+     *  SQL selecting the mapping's listed columns for the rows that hold all of the given number of
+     *  tokens, in id order.  The tokens are bound in turn as the arguments.
+     *  </p><p>
+     *  (As each row's tokens are distinct, a row holds every token exactly when it matches as many
+     *  times as there are tokens.)
+     *  </p> */
+    static String searchSql(TableMapping mapping, String[] listColumns, int tokens) {
+        StringBuilder sql = new StringBuilder( "SELECT " );
+
+        for ( int i = 0; i < listColumns.length; i++ )
+            sql.append( i == 0 ? "" : ", " ).append( listColumns[ i ] );
+
+        sql.append( " FROM " ).append( mapping.table )
+           .append( " WHERE " ).append( TableMapping.COLUMN_ID ).append( " IN (SELECT " )
+           .append( TableMapping.COLUMN_ROW_ID ).append( " FROM " ).append( mapping.tokenTable() )
+           .append( " WHERE " ).append( TableMapping.COLUMN_TOKEN ).append( " IN (" );
+
+        for ( int i = 0; i < tokens; i++ ) sql.append( i == 0 ? "?" : ",?" );
+
+        return sql.append( ") GROUP BY " ).append( TableMapping.COLUMN_ROW_ID )
+                  .append( " HAVING COUNT(*) = " ).append( tokens )
+                  .append( ") ORDER BY " ).append( TableMapping.COLUMN_ID ).toString();
+    }
+}
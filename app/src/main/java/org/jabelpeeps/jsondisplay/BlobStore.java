@@ -0,0 +1,241 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * An append-only file of sealed values for the blob columns of one mapping, read through a
+ * MappedByteBuffer - so that opening a value reads it straight from the page cache, and the rows
+ * that carry its (offset, length) never drag it through a CursorWindow.
+ * </p><p>
+ * Values are appended as rows are written, and replaced or deleted rows leave theirs behind as
+ * garbage.  compactIfWasteful() copies the live values into a new file once the garbage outweighs
+ * them.  Each file is numbered with a generation, which is recorded in the db in the same
+ * transaction that moves the offsets over to the new file - so the db always matches one file or
+ * the other, whenever the process dies.
+ * </p><p>
+ * append() and flush() are for the one thread writing the mapping's table.  get() may be called
+ * from any thread, and waits out a compaction.
+ * </p> */
+final class BlobStore {
+
+    /** the current generation of the store for each table. */
+    private static final String TABLE_NAME = "blob_files";
+    private static final String COLUMN_TABLE = "table_name";
+    private static final String COLUMN_GENERATION = "generation";
+    /** stores smaller than this are never worth compacting. */
+    private static final long MIN_COMPACT_BYTES = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL( "CREATE TABLE " + TABLE_NAME + " (" + COLUMN_TABLE + " TEXT PRIMARY KEY, "
+                                                       + COLUMN_GENERATION + " INTEGER NOT NULL )" );
+    }
+
+    private final File directory;
+    private final SQLiteDatabase db;
+    private final TableMapping mapping;
+
+    private int generation;
+    private FileOutputStream file;
+    private BufferedOutputStream output;
+    // the length of the file, including anything still buffered.
+    private long end;
+    private FileChannel channel;
+    // a mapping of the whole file as it was when last mapped, or null before the first read.
+    private MappedByteBuffer mapped;
+
+    BlobStore(File storeDirectory, SQLiteDatabase database, TableMapping tableMapping) throws IOException {
+        directory = storeDirectory;
+        db = database;
+        mapping = tableMapping;
+        generation = (int) DatabaseUtils.longForQuery( db
+                , "SELECT IFNULL(MAX(" + COLUMN_GENERATION + "), 0) FROM " + TABLE_NAME
+                                                        + " WHERE " + COLUMN_TABLE + " = ?"
+                , new String[] { mapping.table } );
+        open();
+        deleteOtherGenerations();
+    }
+
+    private File fileFor(int fileGeneration) {
+        return new File( directory, mapping.table + "-" + fileGeneration + ".blob" );
+    }
+
+    private void open() throws IOException {
+        File current = fileFor( generation );
+        file = new FileOutputStream( current, true );
+        output = new BufferedOutputStream( file, BUFFER_SIZE );
+        end = current.length();
+        channel = new RandomAccessFile( current, "r" ).getChannel();
+        mapped = null;
+    }
+
+    // a compaction that died before its commit leaves its new file behind, and one that died just
+    // after leaves the old one.
+    private void deleteOtherGenerations() {
+        File[] files = directory.listFiles();
+        if ( files == null ) return;
+
+        String current = fileFor( generation ).getName();
+        for ( File each : files ) {
+            String name = each.getName();
+            if ( name.startsWith( mapping.table + "-" ) && name.endsWith( ".blob" ) && !name.equals( current ) )
+                each.delete();
+        }
+    }
+
+    /** appends a sealed value, returning its offset.  It is not readable until flush() is called. */
+    long append(byte[] sealed) throws IOException {
+        long offset = end;
+        output.write( sealed );
+        end += sealed.length;
+        return offset;
+    }
+
+    /** writes out and syncs everything appended - to be called before committing the rows that
+     *  point to it. */
+    void flush() throws IOException {
+        output.flush();
+        file.getFD().sync();
+    }
+
+    /** the sealed value of the given row's blob column, as a read-only view of the mapped file, or
+     *  null if the row has none. */
+    synchronized ByteBuffer get(int rowId, String column) throws IOException {
+        Cursor cursor = db.query( mapping.table
+                                , new String[] { TableMapping.offsetColumn( column )
+                                               , TableMapping.lengthColumn( column ) }
+                                , TableMapping.COLUMN_ID + " = ?"
+                                , new String[] { String.valueOf( rowId ) }
+                                , null, null, null );
+        try {
+            if ( !cursor.moveToFirst() || cursor.isNull( 1 ) ) return null;
+            return read( cursor.getLong( 0 ), cursor.getInt( 1 ) );
+
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private synchronized ByteBuffer read(long offset, int length) throws IOException {
+        long limit = offset + length;
+
+        // the file has grown since it was mapped - an old mapping stays valid, so any views of it
+        // that are still being read are unaffected.
+        if ( mapped == null || limit > mapped.capacity() ) {
+            long size = channel.size();
+            if ( limit > size )
+                throw new IOException( "Blob at " + offset + " runs past the end of " + mapping.table + "'s store." );
+            mapped = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+        }
+        ByteBuffer view = mapped.duplicate();
+        view.limit( (int) limit ).position( (int) offset );
+        return view.slice();
+    }
+
+    /** compacts the store if at least half of it is garbage, returning true if it did. */
+    boolean compactIfWasteful() throws IOException {
+        long live = 0;
+        for ( TableMapping.Column each : mapping.columns ) {
+            if ( each.blob )
+                live += DatabaseUtils.longForQuery( db, "SELECT IFNULL(SUM(" + TableMapping.lengthColumn( each.name )
+                                                        + "), 0) FROM " + mapping.table, null );
+        }
+        if ( end < MIN_COMPACT_BYTES || end - live < live ) return false;
+
+        compact();
+        return true;
+    }
+
+    // copies every live value, in offset order, into the next generation's file and moves the
+    // rows' offsets over to it.  Holding the lock throughout keeps get() from reading the new
+    // offsets from the old file (the lock is always taken before the db, so cannot deadlock).
+    private synchronized void compact() throws IOException {
+        flush();
+        File target = fileFor( generation + 1 );
+        FileOutputStream targetFile = new FileOutputStream( target );
+        BufferedOutputStream copy = new BufferedOutputStream( targetFile, BUFFER_SIZE );
+        byte[] buffer = new byte[ BUFFER_SIZE ];
+        long written = 0;
+        boolean committed = false;
+
+        db.beginTransaction();
+        try {
+            for ( TableMapping.Column each : mapping.columns ) {
+                if ( !each.blob ) continue;
+
+                String offsetColumn = TableMapping.offsetColumn( each.name );
+                String lengthColumn = TableMapping.lengthColumn( each.name );
+                SQLiteStatement move = db.compileStatement( "UPDATE " + mapping.table + " SET " + offsetColumn
+                                                          + " = ? WHERE " + TableMapping.COLUMN_ID + " = ?" );
+                Cursor rows = db.query( mapping.table
+                                      , new String[] { TableMapping.COLUMN_ID, offsetColumn, lengthColumn }
+                                      , lengthColumn + " IS NOT NULL", null, null, null, offsetColumn );
+                try {
+                    while ( rows.moveToNext() ) {
+                        ByteBuffer value = read( rows.getLong( 1 ), rows.getInt( 2 ) );
+
+                        while ( value.hasRemaining() ) {
+                            int chunk = Math.min( buffer.length, value.remaining() );
+                            value.get( buffer, 0, chunk );
+                            copy.write( buffer, 0, chunk );
+                        }
+                        move.bindLong( 1, written );
+                        move.bindLong( 2, rows.getLong( 0 ) );
+                        move.executeUpdateDelete();
+                        written += rows.getInt( 2 );
+                    }
+                } finally {
+                    rows.close();
+                    move.close();
+                }
+            }
+            copy.flush();
+            targetFile.getFD().sync();
+            copy.close();
+
+            db.execSQL( "INSERT OR REPLACE INTO " + TABLE_NAME + " (" + COLUMN_TABLE + ", " + COLUMN_GENERATION
+                                                  + ") VALUES (?, ?)", new Object[] { mapping.table, generation + 1 } );
+            db.setTransactionSuccessful();
+            db.endTransaction();
+            committed = true;
+
+        } finally {
+            if ( !committed ) {
+                db.endTransaction();
+                copy.close();
+                target.delete();
+            }
+        }
+        File old = fileFor( generation );
+        close();
+        generation++;
+        open();
+        old.delete();
+    }
+
+    /** the length of the store's file, garbage and all. */
+    long size() { return end; }
+
+    /** closes the file - any views already handed out remain readable until they are collected. */
+    synchronized void close() throws IOException {
+        try {
+            output.close();
+        } finally {
+            channel.close();
+            mapped = null;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * Writes rows into (and deletes rows from) a mapped table through pre-compiled statements,
+ * committing them in batches so that SQLite only journals and syncs once per batch rather than
+ * once per row.
+ * </p><p>
+ * Instances are single use: create one per ingest, call write() or delete() for every row, and
+ * then either finish() to commit the last (partial) batch, or abort() to roll it back.
+ * </p><p>
+ * The sealed values of blob columns are appended to the BlobStore as their rows are written, and
+ * flushed to it before each commit.  An aborted batch leaves its values there as garbage.
+ * </p> */
+final class BulkRowWriter {
+
+    private final SQLiteDatabase db;
+    private final TableMapping.Column[] columns;
+    private final SQLiteStatement insert;
+    private final SQLiteStatement delete;
+    // only compiled for tables with a BlindIndex.
+    private final SQLiteStatement insertToken;
+    private final SQLiteStatement deleteTokens;
+    // only needed for tables with blob columns.
+    private final BlobStore blobs;
+    private final int batchSize;
+
+    private int rowsInBatch = 0;
+    private int rowsWritten = 0;
+    private final long startTime = System.nanoTime();
+    private long elapsed;
+    // time spent in SQLite itself, as opposed to waiting on the rows.
+    private long busyNanos = 0;
+    private long rowStart;
+
+    BulkRowWriter(SQLiteDatabase database, TableMapping mapping, int batch) {
+        this( database, mapping, null, batch );
+    }
+
+    BulkRowWriter(SQLiteDatabase database, TableMapping mapping, BlobStore blobStore, int batch) {
+        if ( mapping.hasBlobs() && blobStore == null )
+            throw new IllegalArgumentException( mapping.table + " needs a BlobStore to write to." );
+
+        db = database;
+        blobs = blobStore;
+        columns = mapping.columns;
+        insert = db.compileStatement( mapping.upsertSql() );
+        delete = db.compileStatement( mapping.deleteSql() );
+        insertToken = mapping.hasSearchIndex() ? db.compileStatement( mapping.insertTokenSql() ) : null;
+        deleteTokens = mapping.hasSearchIndex() ? db.compileStatement( mapping.deleteTokensSql() ) : null;
+        batchSize = Math.max( 1, batch );
+    }
+
+    /** writes (or replaces) the record's row, with its text in whatever state the record holds it. */
+    void write(IngestPipeline.Record record) throws IOException {
+        startRow();
+        int index = 1;
+        for ( int i = 0; i < columns.length; i++ ) {
+            if ( columns[ i ].blob ) {
+                byte[] sealed = ( record.blobs == null ) ? null : record.blobs[ i ];
+                if ( sealed == null ) {
+                    insert.bindNull( index++ );
+                    insert.bindNull( index++ );
+                }
+                else {
+                    insert.bindLong( index++, blobs.append( sealed ) );
+                    insert.bindLong( index++, sealed.length );
+                }
+            }
+            else if ( columns[ i ].text ) bindText( index++, record.texts[ i ] );
+            else insert.bindLong( index++, record.numbers[ i ] );
+        }
+        insert.bindLong( index, record.digest );
+        insert.executeInsert();
+        insert.clearBindings();
+
+        // the row's tokens are replaced along with it.
+        if ( deleteTokens != null ) {
+            removeTokens( record.id() );
+
+            if ( record.tokens != null ) {
+                for ( long each : record.tokens ) {
+                    insertToken.bindLong( 1, each );
+                    insertToken.bindLong( 2, record.id() );
+                    insertToken.executeInsert();
+                }
+            }
+        }
+        endRow();
+    }
+
+    void delete(int id) throws IOException {
+        startRow();
+        delete.bindLong( 1, id );
+        delete.executeUpdateDelete();
+        if ( deleteTokens != null ) removeTokens( id );
+        endRow();
+    }
+
+    private void removeTokens(int id) {
+        deleteTokens.bindLong( 1, id );
+        deleteTokens.executeUpdateDelete();
+    }
+
+    private void startRow() {
+        rowStart = System.nanoTime();
+        if ( rowsInBatch == 0 ) db.beginTransaction();
+    }
+
+    private void endRow() throws IOException {
+        rowsWritten++;
+        if ( ++rowsInBatch == batchSize ) commitBatch();
+        busyNanos += System.nanoTime() - rowStart;
+    }
+
+    // SQLiteStatement will not take a null String, so missing fields are bound explicitly.
+    private void bindText(int index, String text) {
+        if ( text == null ) insert.bindNull( index );
+        else insert.bindString( index, text );
+    }
+
+    private void commitBatch() throws IOException {
+        // the rows must never be committed ahead of the values they point to.
+        if ( blobs != null ) blobs.flush();
+        db.setTransactionSuccessful();
+        db.endTransaction();
+        rowsInBatch = 0;
+    }
+
+    /** commits any partial batch and releases the statements. Returns the number of rows written
+     *  (or deleted). */
+    int finish() throws IOException {
+        long commitStart = System.nanoTime();
+        if ( rowsInBatch > 0 ) commitBatch();
+        busyNanos += System.nanoTime() - commitStart;
+        closeStatements();
+        elapsed = System.nanoTime() - startTime;
+        ServiceMetrics.recordInsert( busyNanos );
+        return rowsWritten;
+    }
+
+    /** rolls back the current batch (earlier batches are already committed) and releases the statements. */
+    void abort() {
+        if ( rowsInBatch > 0 ) {
+            db.endTransaction();
+            rowsWritten -= rowsInBatch;
+            rowsInBatch = 0;
+        }
+        closeStatements();
+        elapsed = System.nanoTime() - startTime;
+        ServiceMetrics.recordInsert( busyNanos );
+    }
+
+    private void closeStatements() {
+        insert.close();
+        delete.close();
+        if ( insertToken != null ) insertToken.close();
+        if ( deleteTokens != null ) deleteTokens.close();
+    }
+
+    /** the write rate over the life of this writer, valid once finish() or abort() has been called. */
+    float rowsPerSecond() {
+        return elapsed == 0 ? 0f : rowsWritten * 1e9f / elapsed;
+    }
+}
@@ -0,0 +1,123 @@
+package org.jabelpeeps.jsondisplay;
+
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+import com.tozny.crypto.android.AesCbcWithIntegrity.CipherTextIvMac;
+import com.tozny.crypto.android.AesCbcWithIntegrity.SecretKeys;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * <p>
+ * The original engine, and still the default: AES-CBC followed by an HMAC-SHA256 of the IV and
+ * ciphertext, stored by AesCbcWithIntegrity as "iv:mac:ciphertext" in Base64.
+ * </p><p>
+ * Sealed values hold the same three parts, unencoded, after the FORMAT byte.  AesCbcWithIntegrity
+ * only works with Strings and arrays, so they are sealed and opened here with the same keys and
+ * algorithms, using a Cipher and Mac kept per thread.
+ * </p> */
+final class CbcHmacEngine implements CryptoEngine {
+
+    static final byte FORMAT = 1;
+
+    private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>() {
+        @Override protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance( CIPHER_TRANSFORMATION );
+
+            } catch ( GeneralSecurityException e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+    };
+    private static final ThreadLocal<Mac> MACS = new ThreadLocal<Mac>() {
+        @Override protected Mac initialValue() {
+            try {
+                return Mac.getInstance( HMAC_ALGORITHM );
+
+            } catch ( GeneralSecurityException e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+    };
+
+    private final SecretKeys keys;
+
+    CbcHmacEngine(SecretKeys dataKeys) { keys = dataKeys; }
+
+    @Override public String encrypt(String plain)
+                                    throws GeneralSecurityException, UnsupportedEncodingException {
+        return AesCbcWithIntegrity.encrypt( plain, keys ).toString();
+    }
+
+    @Override public String decrypt(String scrambled)
+                                    throws GeneralSecurityException, UnsupportedEncodingException {
+        return AesCbcWithIntegrity.decryptString( new CipherTextIvMac( scrambled ), keys );
+    }
+
+    @Override public byte[] seal(String plain) throws GeneralSecurityException {
+        byte[] iv = new byte[ IV_LENGTH ];
+        RANDOM.nextBytes( iv );
+        byte[] bytes = plain.getBytes( UTF_8 );
+
+        Cipher cipher = CIPHERS.get();
+        cipher.init( Cipher.ENCRYPT_MODE, keys.getConfidentialityKey(), new IvParameterSpec( iv ) );
+
+        int header = 1 + IV_LENGTH + MAC_LENGTH;
+        byte[] sealed = new byte[ header + cipher.getOutputSize( bytes.length ) ];
+        int length = header + cipher.doFinal( bytes, 0, bytes.length, sealed, header );
+
+        sealed[ 0 ] = FORMAT;
+        System.arraycopy( iv, 0, sealed, 1, IV_LENGTH );
+
+        Mac mac = MACS.get();
+        mac.init( keys.getIntegrityKey() );
+        mac.update( iv );
+        mac.update( sealed, header, length - header );
+        System.arraycopy( mac.doFinal(), 0, sealed, 1 + IV_LENGTH, MAC_LENGTH );
+
+        return ( length == sealed.length ) ? sealed : Arrays.copyOf( sealed, length );
+    }
+
+    @Override public String open(ByteBuffer sealed) throws GeneralSecurityException {
+        ByteBuffer in = sealed.duplicate();
+        if ( in.remaining() < 1 + IV_LENGTH + MAC_LENGTH || in.get() != FORMAT )
+            throw new GeneralSecurityException( "Not a sealed CBC value." );
+
+        byte[] iv = new byte[ IV_LENGTH ];
+        byte[] expected = new byte[ MAC_LENGTH ];
+        in.get( iv );
+        in.get( expected );
+
+        // the mac is checked before anything is decrypted.
+        Mac mac = MACS.get();
+        mac.init( keys.getIntegrityKey() );
+        mac.update( iv );
+        mac.update( in.duplicate() );
+        if ( !MessageDigest.isEqual( expected, mac.doFinal() ) )
+            throw new GeneralSecurityException( "MAC check failed on a sealed value." );
+
+        Cipher cipher = CIPHERS.get();
+        cipher.init( Cipher.DECRYPT_MODE, keys.getConfidentialityKey(), new IvParameterSpec( iv ) );
+
+        ByteBuffer plain = ByteBuffer.allocate( cipher.getOutputSize( in.remaining() ) );
+        cipher.doFinal( in, plain );
+        return new String( plain.array(), 0, plain.position(), UTF_8 );
+    }
+}
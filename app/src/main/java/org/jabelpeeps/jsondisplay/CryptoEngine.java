@@ -0,0 +1,29 @@
+package org.jabelpeeps.jsondisplay;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * <p>
+ * Authenticated encryption of single field values, to and from the Strings stored in the db.
+ * </p><p>
+ * Implementations hold their keys for as long as they live, and must be safe to call from any
+ * number of threads at once.  SessionCrypto picks the engine for each value it decrypts from the
+ * format of the value, so that data written by one engine stays readable after a switch to another.
+ * </p><p>
+ * seal() and open() are the binary equivalents, for values kept in a BlobStore rather than the db.
+ * A sealed value starts with a byte naming the engine that sealed it.
+ * </p> */
+interface CryptoEngine {
+
+    String encrypt(String plain) throws GeneralSecurityException, UnsupportedEncodingException;
+
+    String decrypt(String scrambled) throws GeneralSecurityException, UnsupportedEncodingException;
+
+    byte[] seal(String plain) throws GeneralSecurityException;
+
+    /** decrypts the sealed value held in the buffer's remaining bytes, reading it where it lies
+     *  (and leaving the buffer's position alone). */
+    String open(ByteBuffer sealed) throws GeneralSecurityException;
+}
@@ -0,0 +1,51 @@
+package org.jabelpeeps.jsondisplay;
+
+import static org.jabelpeeps.jsondisplay.TableMapping.blob;
+import static org.jabelpeeps.jsondisplay.TableMapping.encrypted;
+import static org.jabelpeeps.jsondisplay.TableMapping.id;
+import static org.jabelpeeps.jsondisplay.TableMapping.integer;
+import static org.jabelpeeps.jsondisplay.TableMapping.searchable;
+import static org.jabelpeeps.jsondisplay.TableMapping.text;
+
+/**
+ * <p>
+ * The collections that GetItemsService downloads, and how each is stored.
+ * </p><p>
+ * The posts are the list's own data, and have the full treatment - differential sync, the user
+ * summary and the in-memory snapshot.  The collections in RELATED are each fetched after the posts,
+ * and replaced as a whole when they change.  To add one, declare it here and add a migration to
+ * GetItemsService that calls its create() method.
+ * </p> */
+final class Endpoints {
+
+    private static final String BASE_URL = "http://jsonplaceholder.typicode.com/";
+
+    /** NB the column order here is also the order of the fields in each post's row digest.  The
+     *  bodies, being much the largest field, are kept in a BlobStore. */
+    static final TableMapping POSTS = new TableMapping( BASE_URL + "posts", GetItemsService.TABLE_NAME
+            , id( "id" )
+            , integer( "userId", GetItemsService.COLUMN_USER_ID, true )
+            , searchable( "title", GetItemsService.COLUMN_TITLE )
+            , blob( "body", GetItemsService.COLUMN_BODY, true ) );
+
+    static final TableMapping COMMENTS = new TableMapping( BASE_URL + "comments", "comments"
+            , id( "id" )
+            , integer( "postId", "postId", true )
+            , encrypted( "name", "name" )
+            , encrypted( "email", "email" )
+            , encrypted( "body", "body" ) );
+
+    /** the users' details - not to be confused with GetItemsService's summary table of userIds. */
+    static final TableMapping PROFILES = new TableMapping( BASE_URL + "users", "profiles"
+            , id( "id" )
+            , encrypted( "name", "name" )
+            , text( "username", "username" )
+            , encrypted( "email", "email" )
+            , encrypted( "phone", "phone" )
+            , text( "website", "website" ) );
+
+    /** the collections that are fetched after the posts. */
+    static final TableMapping[] RELATED = { COMMENTS, PROFILES };
+
+    private Endpoints() {}
+}
@@ -0,0 +1,136 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.os.Build;
+import android.util.Base64;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * <p>
+ * AES-GCM, which encrypts and authenticates in a single pass, so needs neither a separate MAC nor
+ * its key.  Each value is stored as PREFIX followed by one Base64 block of the 12-byte IV, the
+ * ciphertext and the 16-byte tag - a third of the encoding work of CbcHmacEngine's three parts.
+ * </p><p>
+ * Ciphers are looked up once per thread and re-initialised for each value, rather than created
+ * anew every time.
+ * </p><p>
+ * PREFIX can never begin a CbcHmacEngine value, whose first ':' follows a 24 character IV.
+ * Sealed values are the same IV, ciphertext and tag, unencoded, after the FORMAT byte.
+ * </p> */
+final class GcmEngine implements CryptoEngine {
+
+    static final String PREFIX = "gcm1:";
+    static final byte FORMAT = 2;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>() {
+        @Override protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance( TRANSFORMATION );
+
+            } catch ( GeneralSecurityException e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+    };
+
+    private final SecretKey key;
+
+    GcmEngine(SecretKey aesKey) { key = aesKey; }
+
+    /** false if this device's providers have no AES-GCM, in which case only CbcHmacEngine can be used. */
+    static boolean isAvailable() {
+        try {
+            CIPHERS.get();
+            return true;
+
+        } catch ( IllegalStateException e ) {
+            return false;
+        }
+    }
+
+    /** true if the value was written by this engine. */
+    static boolean wrote(String scrambled) { return scrambled.startsWith( PREFIX ); }
+
+    // GCMParameterSpec only arrived in API 19 - the older providers take the IV alone, and use a
+    // 128 bit tag.
+    private static AlgorithmParameterSpec parameters(byte[] iv, int offset) {
+        if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT )
+            return new GCMParameterSpec( TAG_BITS, iv, offset, IV_LENGTH );
+
+        return new IvParameterSpec( iv, offset, IV_LENGTH );
+    }
+
+    @Override public String encrypt(String plain) throws GeneralSecurityException {
+        byte[] sealed = seal( plain );
+        // the Base64 leaves out the FORMAT byte, as PREFIX does its job.
+        return PREFIX + Base64.encodeToString( sealed, 1, sealed.length - 1, Base64.NO_WRAP );
+    }
+
+    @Override public String decrypt(String scrambled) throws GeneralSecurityException {
+        if ( !wrote( scrambled ) )
+            throw new GeneralSecurityException( "Not an AES-GCM value." );
+
+        byte[] sealed;
+        try {
+            sealed = Base64.decode( scrambled.substring( PREFIX.length() ), Base64.NO_WRAP );
+        } catch ( IllegalArgumentException e ) {
+            throw new GeneralSecurityException( e );
+        }
+        if ( sealed.length < IV_LENGTH + TAG_BITS / 8 )
+            throw new GeneralSecurityException( "AES-GCM value too short." );
+
+        Cipher cipher = CIPHERS.get();
+        cipher.init( Cipher.DECRYPT_MODE, key, parameters( sealed, 0 ) );
+
+        return new String( cipher.doFinal( sealed, IV_LENGTH, sealed.length - IV_LENGTH ), UTF_8 );
+    }
+
+    @Override public byte[] seal(String plain) throws GeneralSecurityException {
+        byte[] iv = new byte[ IV_LENGTH ];
+        RANDOM.nextBytes( iv );
+        byte[] bytes = plain.getBytes( UTF_8 );
+
+        Cipher cipher = CIPHERS.get();
+        cipher.init( Cipher.ENCRYPT_MODE, key, parameters( iv, 0 ) );
+
+        int header = 1 + IV_LENGTH;
+        byte[] sealed = new byte[ header + cipher.getOutputSize( bytes.length ) ];
+        sealed[ 0 ] = FORMAT;
+        System.arraycopy( iv, 0, sealed, 1, IV_LENGTH );
+        int length = header + cipher.doFinal( bytes, 0, bytes.length, sealed, header );
+
+        return ( length == sealed.length ) ? sealed : Arrays.copyOf( sealed, length );
+    }
+
+    @Override public String open(ByteBuffer sealed) throws GeneralSecurityException {
+        ByteBuffer in = sealed.duplicate();
+        if ( in.remaining() < 1 + IV_LENGTH + TAG_BITS / 8 || in.get() != FORMAT )
+            throw new GeneralSecurityException( "Not a sealed AES-GCM value." );
+
+        byte[] iv = new byte[ IV_LENGTH ];
+        in.get( iv );
+
+        Cipher cipher = CIPHERS.get();
+        cipher.init( Cipher.DECRYPT_MODE, key, parameters( iv, 0 ) );
+
+        ByteBuffer plain = ByteBuffer.allocate( cipher.getOutputSize( in.remaining() ) );
+        cipher.doFinal( in, plain );
+        return new String( plain.array(), 0, plain.position(), UTF_8 );
+    }
+}
@@ -1,12 +1,13 @@
 package org.jabelpeeps.jsondisplay;
 
 import android.app.Service;
-import android.content.ContentValues;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -14,49 +15,55 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Process;
 import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseIntArray;
 import android.view.Gravity;
 import android.widget.Toast;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
-import com.securepreferences.SecurePreferences;
+import com.squareup.okhttp.CacheControl;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
-import com.tozny.crypto.android.AesCbcWithIntegrity;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashSet;
-import java.util.Map;
 import java.util.Set;
-
-import static com.tozny.crypto.android.AesCbcWithIntegrity.decryptString;
-import static com.tozny.crypto.android.AesCbcWithIntegrity.encrypt;
-import static com.tozny.crypto.android.AesCbcWithIntegrity.generateKey;
-import static com.tozny.crypto.android.AesCbcWithIntegrity.keyString;
-import static com.tozny.crypto.android.AesCbcWithIntegrity.keys;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class GetItemsService extends Service
                                     implements com.squareup.okhttp.Callback {
 
     private static final boolean DEBUG = false;
     private static final String TAG = "GetItemsService";
-    private static final String POSTS_URL = "http://jsonplaceholder.typicode.com/posts";
     private static final String DB_NAME = "posts_data";
-    private static final int DB_VERSION = 1;
+    /** parsers are cheap, but the factory holding their shared symbol tables is worth keeping. */
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /** an Intent extra that makes a refresh ignore the minimum refresh interval. */
+    static final String EXTRA_FORCE = "force";
 
     static final String TABLE_NAME = "posts";
     private static final String COLUMN_POST_ID = "_id";
     static final String COLUMN_USER_ID = "userId";
-    private static final String COLUMN_TITLE = "title";
-    private static final String COLUMN_BODY = "body";
+    static final String COLUMN_TITLE = "title";
+    static final String COLUMN_BODY = "body";
+    /** a keyed digest of each row's plaintext, used to spot the rows that change between downloads. */
+    private static final String COLUMN_DIGEST = "digest";
+    static final int COLUMN_POST_ID_INDEX = 0;
     static final int COLUMN_USER_ID_INDEX = 1;
     static final int COLUMN_TITLE_INDEX = 2;
-    static final int COLUMN_BODY_INDEX = 3;
+    /** the columns that the list shows - the body is left in the db until a post is opened. */
+    private static final String[] LIST_COLUMNS = { COLUMN_POST_ID, COLUMN_USER_ID, COLUMN_TITLE };
 
     private static final String SQL_CREATE_ENTRIES =
             "CREATE TABLE " + TABLE_NAME
@@ -65,78 +72,338 @@ public final class GetItemsService extends Service
                             + COLUMN_TITLE + " TEXT, "
                             + COLUMN_BODY + " TEXT )";
 
+    /** a summary of the posts table - one row per distinct user - maintained during ingest. */
+    private static final String USERS_TABLE_NAME = "users";
+    private static final String COLUMN_POST_COUNT = "post_count";
+
+    private static final String SQL_CREATE_USERS =
+            "CREATE TABLE " + USERS_TABLE_NAME
+                    + "("   + COLUMN_USER_ID + " INTEGER PRIMARY KEY, "
+                            + COLUMN_POST_COUNT + " INTEGER NOT NULL )";
+
+    private static final String SQL_INSERT_USER =
+            "INSERT INTO " + USERS_TABLE_NAME
+                    + "("   + COLUMN_USER_ID + ", " + COLUMN_POST_COUNT + ") VALUES (?, ?)";
+
+    /** the steps that take the original (version 1) schema up to the current one, in order. Add
+     *  new steps to the end - the db version is always that of the last step. */
+    private static final Migration[] MIGRATIONS = {
+            new Migration( 2 ) {
+                @Override void apply(SQLiteDatabase db) {
+                    db.execSQL( SQL_CREATE_USERS );
+                    db.execSQL( "INSERT INTO " + USERS_TABLE_NAME
+                                    + " SELECT " + COLUMN_USER_ID + ", COUNT(*) FROM " + TABLE_NAME
+                                    + " GROUP BY " + COLUMN_USER_ID );
+                }
+            },
+            new Migration( 3 ) {
+                // lets the per-user loaders find their posts without a full table scan.
+                @Override void apply(SQLiteDatabase db) {
+                    createIndex( db, TABLE_NAME, COLUMN_USER_ID );
+                }
+            },
+            new Migration( 4 ) {
+                // existing rows are left with a null digest, so they are rewritten on the next sync
+                // - which rewritePending() keeps from being skipped as unchanged.
+                @Override void apply(SQLiteDatabase db) {
+                    addColumn( db, TABLE_NAME, COLUMN_DIGEST, "INTEGER" );
+                }
+            },
+            new Migration( 5 ) {
+                @Override void apply(SQLiteDatabase db) {
+                    Endpoints.COMMENTS.create( db );
+                    Endpoints.PROFILES.create( db );
+                }
+            },
+            new Migration( 6 ) {
+                // the existing posts have no tokens, so their digests are cleared to have them all
+                // rewritten - and tokenised - by the next sync, which rewritePending() makes a full
+                // download even if the server has nothing new.
+                @Override void apply(SQLiteDatabase db) {
+                    Endpoints.POSTS.createTokenTable( db );
+                    db.execSQL( "UPDATE " + TABLE_NAME + " SET " + COLUMN_DIGEST + " = NULL" );
+                }
+            },
+            new Migration( 7 ) {
+                // the bodies move out to a BlobStore as each post is rewritten, so the digests are
+                // cleared to have the next sync (a full download - see rewritePending()) rewrite
+                // them all.  Until then, getBody() falls back to the old column.
+                @Override void apply(SQLiteDatabase db) {
+                    addColumn( db, TABLE_NAME, TableMapping.offsetColumn( COLUMN_BODY ), "INTEGER" );
+                    addColumn( db, TABLE_NAME, TableMapping.lengthColumn( COLUMN_BODY ), "INTEGER" );
+                    BlobStore.createTable( db );
+                    db.execSQL( "UPDATE " + TABLE_NAME + " SET " + COLUMN_DIGEST + " = NULL" );
+                }
+            },
+    };
+    static final int DB_VERSION = MIGRATIONS[ MIGRATIONS.length - 1 ].version;
+
+    /** the number of rows committed in each transaction while writing new data to the db.  (On a
+     *  full reload, the batches are nested within a single transaction.) */
+    private static final int DEFAULT_INSERT_BATCH_SIZE = 500;
+    /** the most post ids put in one IN (...) clause - SQLite allows 999 variables a statement. */
+    private static final int MAX_QUERY_IDS = 500;
+    /** the least time between the end of one successful refresh and the start of the next, unless forced. */
+    private static final long DEFAULT_MIN_REFRESH_INTERVAL_MS = 30 * 1000;
+    /** the number of pages downloaded at once by a paged fetch, unless set otherwise. */
+    private static final int DEFAULT_PAGE_PARALLELISM = 4;
+    /** the most rows kept in the in-memory snapshot - beyond this, the list pages its rows from
+     *  the db instead, so that its memory stays flat however many posts there are. */
+    private static final int MAX_SNAPSHOT_ROWS = 5000;
+    /** how long the service outlives its last client once locked, so that logging in again within
+     *  it needs only the key - the db, user index and snapshot are all still there. */
+    private static final long DEFAULT_RESUME_GRACE_MS = 60 * 1000;
+    /** how long the key outlives the last client - long enough for the fragments to rebind across
+     *  a configuration change. */
+    private static final long LOCK_DELAY_MS = 500;
+    /** the number of decrypted titles kept for the listView - a few screens' worth either way. */
+    private static final int TITLE_CACHE_SIZE = 256;
+    /** the number of decrypted bodies kept - the open post and its neighbours, with a few to spare. */
+    private static final int BODY_CACHE_SIZE = 8;
+
     private static final int mStartMode = START_NOT_STICKY; // indicates how to behave if the service is killed
-    private static final boolean mAllowRebind = false;      // indicates whether onRebind should be used
+    private static final boolean mAllowRebind = true;       // indicates whether onRebind should be used
 
     private final IBinder mBinder = new GetPostBinder();  // interface for clients that bind
     private static PostData postData;               // a private nested subclass of SQLiteOpenHelper
-    private final OkHttpClient httpClient = new OkHttpClient();
+    /** the app-wide client, whose cache and connections outlast this service instance. */
+    private OkHttpClient httpClient;
+    /** the unlocked SecurePreferences - only touched on the ServiceHandler thread, and null while locked. */
     private static SharedPreferences prefs;
+    /** the store passed to unlockWith(), waiting for the next onStartCommand() to take it. */
+    private static volatile SharedPreferences handedOver;
+    /** true from the creation of the service until the first login, and again from lockSession
+     *  until the next.  Only changed on the main thread. */
+    private volatile boolean locked = true;
+    /** the decoded data key, held only while this service instance is running. */
+    private final SessionCrypto crypto = new SessionCrypto();
+    /** decrypted titles keyed by post _id, so rows scrolled back into view are not decrypted again. */
+    private final LruCache<Integer, String> titleCache = new LruCache<>( TITLE_CACHE_SIZE );
+    /** decrypted bodies keyed by post _id, so that the neighbours of an open post are ready to show. */
+    private final LruCache<Integer, String> bodyCache = new LruCache<>( BODY_CACHE_SIZE );
+    // counts for getTitle() alone, so that prefetching doesn't flatter the cache's hit rate.
+    private final AtomicInteger titleHits = new AtomicInteger();
+    private final AtomicInteger titleMisses = new AtomicInteger();
     private ServiceHandler mServiceHandler;
     private static SQLiteDatabase database;
+    /** the encrypted post bodies, kept out of the posts table. */
+    private BlobStore bodies;
 
-    static boolean dbLoaded = false;
-    /** holds the strings for the drop-down navigation views in the spinner. */
-    private static final Set<String> USERS = new LinkedHashSet<String>( 16 );
+    // the readiness of the data in the db, for this session.
+    private static final int DATA_PENDING = 0;
+    private static final int DATA_READY = 1;
+    private static final int DATA_FAILED = 2;
+    private volatile int dataState = DATA_PENDING;   // only changed on the main thread.
+
+    private final Handler mainHandler = new Handler( Looper.getMainLooper() );
+    /** keeps the refreshes - and so the ingests - to one at a time, and not too often. */
+    private static final RefreshScheduler refreshes = new RefreshScheduler( DEFAULT_MIN_REFRESH_INTERVAL_MS );
+    /** clients waiting on the data - only touched on the main thread. */
+    private final Set<DataListener> dataListeners = new LinkedHashSet<DataListener>();
+
+    private static volatile int insertBatchSize = DEFAULT_INSERT_BATCH_SIZE;
+    /** rows per second achieved by the most recent ingest of new data. */
+    private static volatile float lastIngestRate = 0f;
+    /** whether ingest runs parsing, encryption and writing on separate threads (true), or serially. */
+    private static volatile boolean pipelinedIngest = true;
+    private static volatile long resumeGraceMillis = DEFAULT_RESUME_GRACE_MS;
+    /** the number of logins that resumed a locked session, rather than starting a new one. */
+    private static volatile int warmResumes = 0;
+    /** whether new values are encrypted with AES-GCM (true), or with the original CBC and HMAC. */
+    private static volatile boolean gcmEncryption = false;
+    /** whether new data is merged into the existing rows (true), or replaces them all under a new key. */
+    private static volatile boolean differentialSync = true;
+    // the number of rows rewritten and deleted by the last download of new data.
+    private static volatile int lastSyncChanged = 0;
+    private static volatile int lastSyncDeleted = 0;
+    /** the posts asked for in each page of a paged fetch, or 0 to fetch them all in one request. */
+    private static volatile int pagedFetchSize = 0;
+    private static volatile int pagedFetchParallelism = DEFAULT_PAGE_PARALLELISM;
+    /** the number of page requests that the last paged fetch had to repeat. */
+    private static volatile int lastFetchRetries = 0;
+    /** the distinct userIds in the db, in ascending order, for the drop-down in the spinner. */
+    private static volatile int[] userIds = new int[0];
+    /** an in-memory copy of the list columns (still encrypted), replaced as a whole on each change -
+     *  or null where there are too many rows to keep one. */
+    private volatile PostSnapshot snapshot;
 
     public GetItemsService() {}
 
+    /** hands over the SecurePreferences that LoginActivity has already opened with the checked pin,
+     *  so that the service need not derive its key a second time.  Call before starting the service. */
+    static void unlockWith(SharedPreferences unlocked) { handedOver = unlocked; }
+
     @Override public void onCreate() {
         // Start a thread to assist the service, with background tasks.
         HandlerThread thread =
                 new HandlerThread( "GetPostServiceHandlerThread",
-                                                  Process.THREAD_PRIORITY_BACKGROUND ) {
-            @Override protected void onLooperPrepared() {
-                // Get the HandlerThread's Looper and use it for our nested Handler class.
-                mServiceHandler = new ServiceHandler( getLooper() );
-            }
-        };
+                                                  Process.THREAD_PRIORITY_BACKGROUND );
         thread.start();
+        // Get the HandlerThread's Looper (waiting for it, if need be) and use it for our nested
+        // Handler class - so that onStartCommand() can always post to it.
+        mServiceHandler = new ServiceHandler( thread.getLooper() );
+
+        httpClient = SharedHttpClient.get( this );
+        crypto.setGcm( gcmEncryption );
 
         // save a reference to the database.
         postData = new PostData();
         database = postData.getWritableDatabase();
+        try {
+            bodies = new BlobStore( getFilesDir(), database, Endpoints.POSTS );
+        } catch ( IOException e ) {
+            throw new RuntimeException( "Unable to open the store of post bodies.", e );
+        }
     }
 
     @Override public int onStartCommand(Intent intent, int flags, int startId) {
         // The service has been starting, by a call to startService()
         if ( DEBUG ) Log.i( TAG, "onStartCommand() called." );
 
-        if ( prefs == null ) {
-            if ( intent.hasExtra( "pin" ) ) {
-                // open an instance of securePrefs using the pin supplied in the intent as the password.
-                prefs = new SecurePreferences( getApplication()
-                                                , intent.getStringExtra( "pin" )
-                                                , getString( R.string.file_name_secure_prefs ) );
-                intent.removeExtra( "pin" );
-            }
-            else throw new RuntimeException( "Attempt to start GetItemsService without valid pin." );
-        }
-        // prepare an Http request - including a header checking the source Etag, if one has been
-        // saved from a previous download of the JsonData.
-        Request request;
-        if ( prefs.contains( "Etag" ) )
-            request = new Request.Builder()
-                                 .url( POSTS_URL )
-                                 .header( "If-None-Match", prefs.getString( "Etag", "" ) )
-                                 .build();
-        else
-            request = new Request.Builder().url( POSTS_URL ).build();
-
-        // this call is run in a separate thread, calling onResponse() when it is finished.
-        httpClient.newCall( request ).enqueue( this );
+        SharedPreferences store = handedOver;
+        handedOver = null;
+        boolean resumed = false;
+
+        if ( store != null ) {
+            // a login - the first for this service, or one back within the grace period, in which
+            // case the data from before the lock is still good.
+            resumed = locked && dataState == DATA_READY;
+            locked = false;
+            mainHandler.removeCallbacks( lockSession );
+            mainHandler.removeCallbacks( timedShutdown );
+            unlock( store, resumed );
+        }
+        else if ( locked )
+            throw new RuntimeException( "Attempt to start GetItemsService before unlockWith() was called." );
+
+        boolean force = intent.getBooleanExtra( EXTRA_FORCE, false );
+
+        if ( resumed && !force ) {
+            warmResumes++;
+            if ( DEBUG ) Log.i( TAG, "Resumed a locked session, without a refresh." );
+            return mStartMode;
+        }
+        // the scheduler outlives the service, so a new instance may follow a refresh that only its
+        // predecessor saw - it must not be throttled into never loading any data.
+        RefreshScheduler.Outcome outcome = refreshes.request( force, dataState == DATA_READY );
+
+        if ( outcome != RefreshScheduler.Outcome.SERVED ) {
+            if ( DEBUG ) Log.i( TAG, "Refresh request " + outcome );
+
+            Toast toast = Toast.makeText( getApplication()
+                    , ( outcome == RefreshScheduler.Outcome.MERGED ) ? R.string.prompt_refresh_merged
+                                                                     : R.string.prompt_refresh_throttled
+                    , Toast.LENGTH_SHORT );
+            toast.setGravity( Gravity.CENTER, 0, 0 );
+            toast.show();
+            return mStartMode;
+        }
+
+        if ( pagedFetchSize > 0 ) {
+            // the pages are fetched on their own threads, and ingested on the ServiceHandler's.
+            final int pageSize = pagedFetchSize;
+            final int parallelism = pagedFetchParallelism;
+
+            mServiceHandler.post( new Runnable() {
+                @Override public void run() {
+                    PagedFetcher pages = new PagedFetcher( httpClient, Endpoints.POSTS.url
+                                                                , pageSize, parallelism );
+                    ingest( pages );
+                    lastFetchRetries = pages.getRetries();
+                }
+            } );
+        }
+        else {
+            // prepare an Http request - the client's cache adds the headers that check whether the
+            // copy of the JsonData that it holds is still current.
+            Request request = new Request.Builder().url( Endpoints.POSTS.url ).build();
+
+            // this call is run in a separate thread, calling onResponse() when it is finished.
+            httpClient.newCall( request ).enqueue( this );
+        }
 
         // If the service is killed, after returning from here, it will restart in this mode.
         return mStartMode;
     }
 
+    // opens the session with a store handed over at login.  This runs on the ServiceHandler thread,
+    // so that it is ordered with the ingests, and with the wipe posted by lockSession.
+    private void unlock(final SharedPreferences store, final boolean resumed) {
+        mServiceHandler.post( new Runnable() {
+            @Override public void run() {
+                prefs = store;
+
+                // decode the data key once for this session, if one was saved by an earlier download.
+                if ( !crypto.isUnlocked() && prefs.contains( "db_key" ) ) {
+                    try {
+                        crypto.unlock( prefs.getString( "db_key", "" ) );
+
+                    } catch ( GeneralSecurityException e ) { e.printStackTrace(); }
+                }
+                // the Etag was once saved here by hand - the http cache keeps its own copy now.
+                if ( prefs.contains( "Etag" ) ) prefs.edit().remove( "Etag" ).apply();
+                // as was a digest of the whole payload, which the http cache has made redundant too.
+                if ( prefs.contains( "payload_digest" ) ) prefs.edit().remove( "payload_digest" ).apply();
+
+                if ( resumed ) mainHandler.post( dataResumed );
+            }
+        } );
+    }
+
+    // tells any clients that bound while the session was locked that its data can be read again.
+    private final Runnable dataResumed = new Runnable() {
+        @Override public void run() {
+            if ( locked || dataState != DATA_READY ) return;
+
+            for ( DataListener each : new ArrayList<DataListener>( dataListeners ) )
+                each.onDataReady();
+        }
+    };
+
     @Override public IBinder onBind(Intent intent) {
-        if ( prefs == null )
+        if ( locked )
             throw new RuntimeException( "Attempt to bind GetItemsService when service not started." );
 
         return mBinder;
     }
 
+    @Override public void onRebind(Intent intent) {
+        // once the session has locked, a returning client is given no data (isDataReady() stays
+        // false until dataResumed), and timedShutdown is left to run - only a login can stop it.
+        // Unlike onBind(), this does not throw, as the binder it gets back is already its own.
+        if ( locked ) {
+            if ( DEBUG ) Log.i( TAG, "Client rebound to a locked session, awaiting login..." );
+            return;
+        }
+        // a client is back in time to keep the session unlocked.
+        mainHandler.removeCallbacks( lockSession );
+    }
+
+    // drops the key and the store it is kept in, leaving only encrypted state behind, and gives
+    // a login the grace period to resume the session before the service stops.  Waits out any
+    // refresh in flight, which would need the key to finish.
+    private final Runnable lockSession = new Runnable() {
+        @Override public void run() {
+            if ( refreshes.isInFlight() ) {
+                mainHandler.postDelayed( this, LOCK_DELAY_MS );
+                return;
+            }
+            if ( DEBUG ) Log.i( TAG, "lockSession has become active, locking Service..." );
+            locked = true;
+
+            mServiceHandler.post( new Runnable() {
+                @Override public void run() {
+                    crypto.wipe();
+                    prefs = null;
+                    // anything decrypted since the last client left goes too.
+                    titleCache.evictAll();
+                    bodyCache.evictAll();
+                }
+            } );
+            mainHandler.postDelayed( timedShutdown, resumeGraceMillis );
+        }
+    };
+
     private final Runnable timedShutdown = new Runnable() {
         @Override public void run() {
             if ( DEBUG ) Log.i( TAG, "timedShutDown has become active, stopping Service..." );
@@ -147,38 +414,494 @@ public final class GetItemsService extends Service
 
     // called when All clients have unbound with unbindService(), or have been killed.
     @Override public boolean onUnbind(Intent intent) {
-        // start runnable to shutdown service in 2 seconds. (more than long enough to cover fragment
-        // lifecycle events.)
-        mServiceHandler.postDelayed( timedShutdown, 500 );
+        // no plaintext is to outlive the clients that asked for it.
+        titleCache.evictAll();
+        bodyCache.evictAll();
+        mainHandler.postDelayed( lockSession, LOCK_DELAY_MS );
 
         return mAllowRebind;
     }
 
+    // reached through "adb shell dumpsys activity service GetItemsService", so the stage figures
+    // can be collected from devices in the field.
+    @Override protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        ServiceMetrics.dump( writer );
+    }
+
     @Override public void onDestroy() {
         // called when service is no longer used and is being destroyed
+        mainHandler.removeCallbacks( lockSession );
+        mainHandler.removeCallbacks( timedShutdown );
+        mainHandler.removeCallbacks( dataResumed );
+        titleCache.evictAll();
+        bodyCache.evictAll();
+        crypto.wipe();
+        prefs = null;
+        snapshot = null;
+        // any refresh still running dies with the service.
+        refreshes.finished( false );
+        try {
+            bodies.close();
+        } catch ( IOException e ) { e.printStackTrace(); }
         database = null;
         postData.close();
         mServiceHandler.getLooper().quit();
     }
 
-    private void resetUSERS() {
-        USERS.clear();
-        // add the String for all users at position 0 in USERS.
-        USERS.add( getString( R.string.user_list_first_prompt) );
+    /** <p>
+     *  Callbacks for clients that need to know when the data in the db is ready to be queried.
+     *  </p><p>
+     *  All calls are made on the main thread.  onDataReady() is called once the first download (or
+     *  the check that the existing data is current) has finished; onDataChanged() each time after
+     *  that when new data has replaced it; and onDataFailed() whenever a download fails.  A login
+     *  that resumes a locked session calls onDataReady() again, without a download.
+     *  </p> */
+    interface DataListener {
+        void onDataReady();
+        void onDataFailed();
+        void onDataChanged();
+    }
+
+    // called from the ServiceHandler thread once the db holds data that can be used.
+    private void dataLoaded(final boolean changed) {
+        refreshes.finished( true );
+
+        mainHandler.post( new Runnable() {
+            @Override public void run() {
+                boolean wasReady = ( dataState == DATA_READY );
+                dataState = DATA_READY;
+
+                // iterate over a copy, as listeners may well unregister themselves.
+                for ( DataListener each : new ArrayList<DataListener>( dataListeners ) ) {
+                    if ( !wasReady ) each.onDataReady();
+                    else if ( changed ) each.onDataChanged();
+                }
+            }
+        } );
+    }
+
+    // called from any thread when a download or ingest fails.
+    private void dataFailed() {
+        refreshes.finished( false );
+
+        mainHandler.post( new Runnable() {
+            @Override public void run() {
+                // any data that was ready before the failure is still there to be used.
+                if ( dataState != DATA_READY ) dataState = DATA_FAILED;
+
+                for ( DataListener each : new ArrayList<DataListener>( dataListeners ) )
+                    each.onDataFailed();
+            }
+        } );
+    }
+
+    // replaces the summary of users in the db with the counts gathered by an ingest.
+    private static void saveUserSummary(SQLiteDatabase db, SparseIntArray postCounts) {
+        int[] ids = new int[ postCounts.size() ];
+
+        db.beginTransaction();
+        try {
+            db.delete( USERS_TABLE_NAME, null, null );
+            SQLiteStatement insert = db.compileStatement( SQL_INSERT_USER );
+
+            // NB SparseIntArray keeps its keys in ascending order.
+            for ( int i = 0; i < ids.length; i++ ) {
+                ids[ i ] = postCounts.keyAt( i );
+                insert.bindLong( 1, ids[ i ] );
+                insert.bindLong( 2, postCounts.valueAt( i ) );
+                insert.executeInsert();
+            }
+            insert.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        userIds = ids;
+    }
+
+    // reads the summary of users saved by the last ingest - one row per user, not per post.
+    private void loadUserSummary() {
+        Cursor cursor = database.query( USERS_TABLE_NAME, new String[] { COLUMN_USER_ID }
+                                        , null, null, null, null, COLUMN_USER_ID );
+        int[] ids = new int[ cursor.getCount() ];
+
+        for ( int i = 0; cursor.moveToNext(); i++ ) ids[ i ] = cursor.getInt( 0 );
+
+        cursor.close();
+        userIds = ids;
+    }
+
+    // reads the list columns of every row into a new snapshot - or returns null, if there are too
+    // many rows to keep one.
+    private static PostSnapshot buildSnapshot(SQLiteDatabase db) {
+        if ( DatabaseUtils.queryNumEntries( db, TABLE_NAME ) > MAX_SNAPSHOT_ROWS ) return null;
+
+        Cursor cursor = db.query( TABLE_NAME, LIST_COLUMNS, null, null, null, null, COLUMN_POST_ID );
+        PostSnapshot built = PostSnapshot.fromCursor( cursor );
+        cursor.close();
+        return built;
+    }
+
+    // brings the snapshot up to date after a differential sync, by reading back only the rows
+    // that were written.  Rebuilds it instead if there is none, or most of it has changed anyway.
+    private static PostSnapshot updateSnapshot(SQLiteDatabase db, PostSnapshot current
+                                                                , int[] changedIds, int[] deletedIds) {
+        if ( current == null || changedIds.length > current.size() / 2 ) return buildSnapshot( db );
+
+        // the rewritten rows are read back in batches, and gathered up first...
+        PostSnapshot written = PostSnapshot.EMPTY;
+
+        for ( int start = 0; start < changedIds.length; start += MAX_QUERY_IDS ) {
+            int end = Math.min( changedIds.length, start + MAX_QUERY_IDS );
+            StringBuilder where = new StringBuilder( COLUMN_POST_ID ).append( " IN (" );
+            String[] args = new String[ end - start ];
+
+            for ( int i = start; i < end; i++ ) {
+                where.append( i == start ? "?" : ",?" );
+                args[ i - start ] = String.valueOf( changedIds[ i ] );
+            }
+            Cursor cursor = db.query( TABLE_NAME, LIST_COLUMNS, where.append( ')' ).toString()
+                                      , args, null, null, COLUMN_POST_ID );
+            written = written.merge( PostSnapshot.fromCursor( cursor ), new int[0] );
+            cursor.close();
+        }
+        // ...so that the full snapshot is only copied the once.
+        PostSnapshot merged = current.merge( written, deletedIds );
+        return ( merged.size() > MAX_SNAPSHOT_ROWS ) ? null : merged;
+    }
+
+    /** The outcome of a sync() - what it wrote and deleted, and the snapshot that matches the db. */
+    static final class SyncResult {
+        /** true if every post was replaced under a new key, rather than merged into the old rows. */
+        final boolean rekeyed;
+        final int[] changedIds;
+        final int[] deletedIds;
+        /** the number of posts for each user in the download, as saved to the user summary. */
+        final SparseIntArray postCounts;
+        /** the snapshot after the sync - null where there are too many rows to keep one. */
+        final PostSnapshot snapshot;
+        final float recordsPerSecond;
+
+        SyncResult(boolean replaced, int[] changed, int[] deleted, SparseIntArray counts
+                                   , PostSnapshot current, float rate) {
+            rekeyed = replaced;
+            changedIds = changed;
+            deletedIds = deleted;
+            postCounts = counts;
+            snapshot = current;
+            recordsPerSecond = rate;
+        }
+
+        /** true if the db holds anything that it did not before. */
+        boolean changed() { return rekeyed || changedIds.length > 0 || deletedIds.length > 0; }
+    }
+
+    /** <p>
+     *  Parses, encrypts and writes the posts in the payload into the db, deletes those that have
+     *  gone from it, and brings the user summary and the snapshot (current) up to date with the
+     *  result.
+     *  </p><p>
+     *  With the key that the rows were written under (and differentialSync on), only the posts
+     *  whose digests have changed are written.  Otherwise the table is cleared and every post is
+     *  written under a new key, all in one transaction - the key is saved to the preferences, and
+     *  taken up by crypto, only once that has been committed.
+     *  </p><p>
+     *  Returns null if the sync fails - for any reason, as the parser, the crypto and SQLite can
+     *  all throw unchecked exceptions too - once the http cache has been emptied, so that the next
+     *  request downloads the data again rather than finding it unchanged.
+     *  </p><p>
+     *  Runs on the ServiceHandler thread, which makes the other changes that follow from the result.
+     *  </p> */
+    static SyncResult sync(SQLiteDatabase db, BlobStore bodies, SessionCrypto crypto
+                                             , SharedPreferences preferences
+                                             , IngestPipeline.Payload payload, PostSnapshot current) {
+        try {
+            return syncOrThrow( db, bodies, crypto, preferences, payload, current );
+
+        } catch ( GeneralSecurityException | IOException | RuntimeException e ) {
+            e.printStackTrace();
+            // the cached response no longer matches the db, so mustn't be taken as current.
+            SharedHttpClient.evict();
+            return null;
+        }
+    }
+
+    private static SyncResult syncOrThrow(SQLiteDatabase db, BlobStore bodies, SessionCrypto crypto
+                                          , SharedPreferences preferences
+                                          , IngestPipeline.Payload payload, PostSnapshot current)
+                                                    throws IOException, GeneralSecurityException {
+        // a differential sync needs the key that the existing rows were written with.
+        boolean differential = differentialSync && crypto.isUnlocked();
+        RowDigests previous = null;
+        // the crypto that the new rows are written with - for a full reload, one with a new key.
+        SessionCrypto writing = crypto;
+        String newKey = null;
+
+        if ( differential ) {
+            // note what is there already, so that only the changes are written.
+            previous = RowDigests.load( db, TABLE_NAME, COLUMN_POST_ID, COLUMN_DIGEST );
+        }
+        else {
+            // the new key is only saved, and taken up by the session, once every row written under
+            // it has been committed - until then the old key and rows stay as they were.
+            writing = new SessionCrypto();
+            writing.setGcm( gcmEncryption );
+            newKey = writing.newKey();
+
+            // the old rows are cleared and the new ones written in a single transaction, with the
+            // writer's batches nested inside it, so that a failure part way leaves the old rows.
+            db.beginTransaction();
+        }
+        boolean replaced = false;
+        BulkRowWriter rows = null;
+        boolean finished = false;
+        try {
+            // this deletes the current contents of the SQL tables only, not the db file.
+            if ( !differential ) Endpoints.POSTS.clear( db );
+
+            // get a writer to batch the new rows into the db.
+            final BulkRowWriter writer = rows =
+                    new BulkRowWriter( db, Endpoints.POSTS, bodies, insertBatchSize );
+            // counts the posts for each user, for the summary saved afterwards.
+            final SparseIntArray postCounts = new SparseIntArray();
+            final RowDigests existing = previous;
+            final int[] changed = { 0 };
+            // the ids of the rows written, for updating the snapshot afterwards.
+            final int[][] changedIds = { new int[ 64 ] };
+
+            // parse, encrypt and write each json object as a row in the database, on
+            // separate threads unless the serial path has been selected.
+            IngestPipeline pipeline = new IngestPipeline( Endpoints.POSTS, writing, previous
+                    , pipelinedIngest ? IngestPipeline.defaultWorkers() : 0 );
+
+            IngestPipeline.RecordSink sink = new IngestPipeline.RecordSink() {
+                @Override public void write(IngestPipeline.Record record) throws IOException {
+                    int userId = (int) record.numbers[ COLUMN_USER_ID_INDEX ];
+                    postCounts.put( userId, postCounts.get( userId ) + 1 );
+                    if ( existing != null ) existing.markSeen( record.id() );
+
+                    // rows that the db already holds as they are, are left alone.
+                    if ( record.unchanged ) return;
+
+                    // write the row to the db, with the text fields in their encrypted state.
+                    writer.write( record );
+
+                    if ( changed[ 0 ] == changedIds[ 0 ].length )
+                        changedIds[ 0 ] = Arrays.copyOf( changedIds[ 0 ], changed[ 0 ] * 2 );
+                    changedIds[ 0 ][ changed[ 0 ]++ ] = record.id();
+                }
+            };
+            // get a parser that reads straight from each of the payload's byte streams,
+            // so it is never held in memory as a whole - each object is written to the
+            // db as soon as the parser reaches the end of it.
+            for ( InputStream page = payload.next(); page != null; page = payload.next() ) {
+                JsonParser json = JSON_FACTORY.createParser( ServiceMetrics.counting( page ) );
+                try {
+                    // a page that the db already holds only needs its rows counting, and marking
+                    // as seen - unless they are all to be rewritten under a new key anyway, or
+                    // some are waiting to be rewritten after a migration.
+                    if ( differential && previous.isComplete() && payload.unchanged() )
+                        pipeline.skim( json, sink );
+                    else pipeline.run( json, sink );
+                } finally {
+                    json.close();
+                }
+            }
+            // the rows that have disappeared from the payload go too.  (A payload that is the same
+            // as the last never gets this far - it is answered by the http cache, or with a 304.)
+            int[] deletedIds = ( existing == null ) ? new int[0] : existing.unseenIds();
+            for ( int each : deletedIds ) writer.delete( each );
+
+            writer.finish();
+            finished = true;
+
+            int[] written = Arrays.copyOf( changedIds[ 0 ], changed[ 0 ] );
+            if ( !differential || written.length > 0 || deletedIds.length > 0 )
+                saveUserSummary( db, postCounts );
+
+            if ( !differential ) {
+                db.setTransactionSuccessful();
+                db.endTransaction();
+                replaced = true;
+
+                // save the new key to securePreferences - the old one no longer opens anything -
+                // and keep it decoded in the session's crypto.
+                preferences.edit()
+                           .putString( "db_key", newKey )
+                           .commit();
+                crypto.unlock( newKey );
+            }
+            PostSnapshot snapshot = current;
+
+            // the snapshot must be current before the clients are told of the change.
+            if ( !differential ) snapshot = buildSnapshot( db );
+            else if ( written.length > 0 || deletedIds.length > 0 || current == null )
+                snapshot = updateSnapshot( db, current, written, deletedIds );
+
+            if ( DEBUG ) Log.i( TAG, ( pipelinedIngest ? "Pipelined" : "Serial" )
+                                     + ( differential ? " differential" : " full" )
+                                     + " ingest ran at " + pipeline.recordsPerSecond() + " rows per second"
+                                     + " (writer: " + writer.rowsPerSecond() + "), changing "
+                                     + written.length + " rows and deleting " + deletedIds.length );
+
+            return new SyncResult( !differential, written, deletedIds, postCounts, snapshot
+                                 , pipeline.recordsPerSecond() );
+        } finally {
+            // roll back any unfinished batch, so a failed ingest leaves no half-batch - and for a
+            // full reload, the clearing of the old rows too.
+            if ( rows != null && !finished ) rows.abort();
+            if ( !differential && !replaced ) db.endTransaction();
+        }
+    }
+
+    // runs sync() on the payload, then brings the caches up to date, before telling the clients
+    // how it went.  Runs on the ServiceHandler thread.
+    private void ingest(IngestPipeline.Payload payload) {
+        // a quick toast, as new data is on its way.
+        Toast toast = Toast.makeText( getApplication()
+                , R.string.prompt_new_json_data
+                , Toast.LENGTH_LONG );
+        toast.setGravity( Gravity.CENTER, 0, 0 );
+        toast.show();
+
+        if ( DEBUG ) Log.i( TAG, "Json parsing task started" );
+        SyncResult result;
+        try {
+            result = sync( database, bodies, crypto, prefs, payload, snapshot );
+        } finally {
+            // close the underlying response stream(s), even if parsing failed.
+            payload.close();
+        }
+        if ( result == null ) {
+            dataFailed();
+            return;
+        }
+        // the post ids may have been reused for new content, under a new key.
+        if ( result.rekeyed ) {
+            titleCache.evictAll();
+            bodyCache.evictAll();
+        }
+        else {
+            for ( int each : result.changedIds ) {
+                titleCache.remove( each );
+                bodyCache.remove( each );
+            }
+            for ( int each : result.deletedIds ) {
+                titleCache.remove( each );
+                bodyCache.remove( each );
+            }
+        }
+        boolean dataChanged = result.changed();
+        snapshot = result.snapshot;
+
+        lastIngestRate = result.recordsPerSecond;
+        lastSyncChanged = result.changedIds.length;
+        lastSyncDeleted = result.deletedIds.length;
+        dataLoaded( dataChanged );
+        if ( DEBUG ) Log.i( TAG, "Metrics: " + ServiceMetrics.snapshot() );
+
+        // a new key means that the related collections must be rewritten under it too.
+        syncRelated( result.rekeyed );
+
+        // the bodies of replaced and deleted posts are left behind in the store.
+        try {
+            if ( bodies.compactIfWasteful() && DEBUG )
+                Log.i( TAG, "Compacted the post bodies to " + bodies.size() + " bytes" );
+        } catch ( IOException | RuntimeException e ) { e.printStackTrace(); }
+
+        if ( DEBUG ) Log.i( TAG, "Json parsing task finished" );
+    }
+
+    // fetches each of the related collections in turn, replacing the contents of its table if it
+    // has changed (or rekeyed is true).  A failure is only logged, as the posts are already usable.
+    // Runs on the ServiceHandler thread.
+    private void syncRelated(boolean rekeyed) {
+        for ( TableMapping each : Endpoints.RELATED ) {
+            Response response = null;
+            try {
+                response = httpClient.newCall( new Request.Builder().url( each.url ).build() ).execute();
+                SharedHttpClient.record( response );
+
+                if ( !response.isSuccessful() )
+                    throw new IOException( each.url + " returned code " + response.code() );
+
+                if ( rekeyed || !SharedHttpClient.isUnchanged( response ) )
+                    replaceTable( each, response.body().byteStream() );
+
+            } catch ( GeneralSecurityException | IOException | RuntimeException e ) {
+                e.printStackTrace();
+                SharedHttpClient.evict();
+                // rows left from under an old key could never be read again.
+                if ( rekeyed ) database.delete( each.table, null, null );
+            } finally {
+                try {
+                    if ( response != null ) response.body().close();
+                } catch ( IOException e ) { e.printStackTrace(); }
+            }
+        }
+    }
+
+    // replaces every row in the mapping's table with those parsed from the stream, in a single
+    // transaction so that a failure leaves the old rows in place.
+    private void replaceTable(TableMapping mapping, InputStream stream)
+                                                throws IOException, GeneralSecurityException {
+        JsonParser json = JSON_FACTORY.createParser( stream );
+        final BulkRowWriter rows = new BulkRowWriter( database, mapping, Integer.MAX_VALUE );
+
+        boolean finished = false;
+
+        database.beginTransaction();
+        try {
+            mapping.clear( database );
+
+            new IngestPipeline( mapping, crypto, null, 0 ).run( json, new IngestPipeline.RecordSink() {
+                @Override public void write(IngestPipeline.Record record) throws IOException {
+                    rows.write( record );
+                }
+            } );
+            rows.finish();
+            finished = true;
+            database.setTransactionSuccessful();
+
+        } finally {
+            // the writer's own (nested) transaction has to end before the outer one can.
+            if ( !finished ) rows.abort();
+            database.endTransaction();
+            json.close();
+        }
     }
 
     @Override public void onFailure(Request request, IOException e) {
         if ( DEBUG ) Log.i( TAG, "onFailure callback called" );
+        dataFailed();
     }
     // callback used by OkHttp with the response to the http request made in onStartCommand().
     @Override public void onResponse(final Response response) {
         if ( DEBUG ) Log.i( TAG, "Response code from OkHttp = " + response.code() );
+        SharedHttpClient.record( response );
+
+        if ( response.code() == 304 || SharedHttpClient.isUnchanged( response ) ) {
+            // first the code block to use when a 'resource unmodified' response is received - or
+            // the cache has answered with the same data that the db was filled from.
+            try {
+                response.body().close();
+            } catch ( IOException e ) { e.printStackTrace(); }
 
-        if ( response.code() == 304 ) {
-            // first the code block to use when a 'resource unmodified' response is received.
             mServiceHandler.post( new Runnable() {
                 @Override
                 public void run() {
+                    // rows left without digests by a migration need the data itself to rewrite
+                    // them, so ask for it again - this time from the server, without the cache.
+                    if ( rewritePending( database ) ) {
+                        if ( DEBUG ) Log.i( TAG, "Unchanged response, but rows need rewriting - downloading again." );
+
+                        Request request = new Request.Builder()
+                                                     .url( Endpoints.POSTS.url )
+                                                     .cacheControl( CacheControl.FORCE_NETWORK )
+                                                     .build();
+                        httpClient.newCall( request ).enqueue( GetItemsService.this );
+                        return;
+                    }
                     // a quick toast to the result!
                     Toast toast = Toast.makeText( getApplication()
                             , R.string.prompt_304_returned
@@ -186,18 +909,12 @@ public final class GetItemsService extends Service
                     toast.setGravity( Gravity.CENTER, 0, 0 );
                     toast.show();
 
-                    // we only need to setup the USERS array, not the whole db. First a reset...
-                    resetUSERS();
-                    // get a temporary cursor containing just the userId column.
-                    Cursor cursor = database.query( TABLE_NAME, new String[] { COLUMN_USER_ID }
-                            , null, null, null, null, null );
+                    // we only need to setup the userIds array, not the whole db.
+                    loadUserSummary();
+                    if ( snapshot == null ) snapshot = buildSnapshot( database );
+                    dataLoaded( false );
 
-                    // run down the column adding a line to USERS (a Set) for each unique value.
-                    for ( cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext() ) {
-                        USERS.add( ( getString( R.string.user_list_other_prompts) + cursor.getInt( 0 ) ).intern() );
-                    }
-                    dbLoaded = true;
-                    cursor.close();
+                    if ( crypto.isUnlocked() ) syncRelated( false );
                 }
             } );
         }
@@ -206,99 +923,54 @@ public final class GetItemsService extends Service
             // It uses another background process to handle the json parsing.
             mServiceHandler.post( new Runnable() {
                 @Override
-                public void run() {
-                    // another quick toast.
-                    Toast toast = Toast.makeText( getApplication()
-                            , R.string.prompt_new_json_data
-                            , Toast.LENGTH_LONG );
-                    toast.setGravity( Gravity.CENTER, 0, 0 );
-                    toast.show();
+                public void run() { ingest( new ResponsePayload( response ) ); }
+            } );
+        }
+        else {
+            // any other response means that there is no new data to be had.
+            try {
+                response.body().close();
+            } catch ( IOException e ) { e.printStackTrace(); }
+            dataFailed();
+        }
+    }
+//----------------------------------------------------------------------------------
+    /** The decrypted contents of one post, for the detail view. */
+    static final class PostDetail {
+        final int postId;
+        final int userId;
+        final String title;
+        final String body;
 
-                    // save a copy of the Etag for this response, if one has been sent.
-                    String eTag = response.header( "Etag" );
+        PostDetail(int id, int user, String postTitle, String postBody) {
+            postId = id;
+            userId = user;
+            title = postTitle;
+            body = postBody;
+        }
+    }
 
-                    if ( eTag != null ) {
-                        prefs.edit().putString( "Etag", eTag ).apply();
-                    }
+    /** A payload of a single response. */
+    private static final class ResponsePayload implements IngestPipeline.Payload {
+        private final Response response;
+        private boolean taken;
 
-                    if ( DEBUG ) Log.i( TAG, "Json parsing task started" );
-                    try {
-                        // this deletes the current contents of the SQL table only, not the db file.
-                        database.delete( TABLE_NAME, null, null );
-
-                        // save new random encryption key to securePreferences.
-                        prefs.edit()
-                             .putString( "db_key", keyString( generateKey() ) )
-                             .apply();
-
-                        // get json Data from Http response.
-                        String jsontext = response.body().string().trim();
-
-                        // get parser for Json data.
-                        JsonParser json = new JsonFactory().createParser( jsontext );
-
-                        // get a values object for writing to the db.
-                        ContentValues values = new ContentValues();
-
-                        // setup temporary map to use in parsing loops.
-                        Map<String, Integer> fieldMap = new HashMap<String, Integer>( 4 );
-                        fieldMap.put( "userId", 1 );
-                        fieldMap.put( "id", 2 );
-                        fieldMap.put( "title", 3 );
-                        fieldMap.put( "body", 4 );
-
-                        resetUSERS();
-                        // advance parser off its initial null token...
-                        json.nextToken();
-
-                        // ...and iterate recursively over remaining json object fields, putting
-                        // entries into the values object for each and adding them as a row in the
-                        // database before moving on to the next object..
-                        while ( json.nextValue() != JsonToken.END_ARRAY ) {
-
-                            while ( json.nextToken() != JsonToken.END_OBJECT ) {
-                                String fieldName = json.getCurrentName();
-                                json.nextToken();
-
-                                switch ( fieldMap.get( fieldName ) ) {
-                                    case 1:
-                                        int u = json.getIntValue();
-                                        values.put( COLUMN_USER_ID, u );
-                                        USERS.add( ( getString( R.string.user_list_other_prompts ) + u ).intern() );
-                                        break;
-                                    case 2:
-                                        values.put( COLUMN_POST_ID, json.getIntValue() );
-                                        break;
-                                    case 3:
-                                        values.put( COLUMN_TITLE,
-                                                    encrypt( json.getText(),
-                                                             keys( prefs.getString( "db_key", "" ) ) )
-                                                            .toString() );
-                                        break;
-                                    case 4:
-                                        values.put( COLUMN_BODY,
-                                                    encrypt( json.getText(),
-                                                             keys( prefs.getString( "db_key", "" ) ) )
-                                                            .toString() );
-                                }
-                            }
-                            // insert json object values into db, with the text fields in their encrypted state.
-                            database.insert( TABLE_NAME, null, values );
-
-                            // clear values for next loop.
-                            values.clear();
-                        }
-                        dbLoaded = true;
-                        // close parser and underlying File reader
-                        json.close();
-                        response.body().close();
-
-                    } catch ( GeneralSecurityException | IOException e ) {
-                        e.printStackTrace();
-                    }
-                    if ( DEBUG ) Log.i( TAG, "Json parsing task finished successfully" );
-                }
-            } );
+        ResponsePayload(Response whole) { response = whole; }
+
+        @Override public InputStream next() {
+            if ( taken ) return null;
+
+            taken = true;
+            return response.body().byteStream();
+        }
+
+        // an unchanged response is dealt with in onResponse(), and never gets this far.
+        @Override public boolean unchanged() { return false; }
+
+        @Override public void close() {
+            try {
+                response.body().close();
+            } catch ( IOException e ) { e.printStackTrace(); }
         }
     }
 //----------------------------------------------------------------------------------
@@ -306,46 +978,358 @@ public final class GetItemsService extends Service
 
         private PostData() {
             // the super constructor opens, or initialises a db with the specified params.
-            // If needed, it calls the 'onCreate' method below to generate the table.
+            // If needed, it calls the 'onCreate' or 'onUpgrade' methods below to set up the tables.
             super( getApplication(), DB_NAME, null, DB_VERSION );
         }
         // NB despite the similar method name, this is not a app lifecycle call.
-        @Override public void onCreate(SQLiteDatabase db) {
-            db.execSQL( SQL_CREATE_ENTRIES );
+        @Override public void onCreate(SQLiteDatabase db) { createSchema( db ); }
+
+        @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            migrate( db, oldVersion, newVersion );
+        }
+    }
+//----------------------------------------------------------------------------------
+    /** <p>
+     *  One step in the evolution of the db schema, taking it from the version before to this one.
+     *  </p><p>
+     *  Steps run inside the transaction that SQLiteOpenHelper opens for onCreate() or onUpgrade(),
+     *  and must only add to the schema (or move data within it), so that an upgrade never drops
+     *  the data that is already held.
+     *  </p> */
+    abstract static class Migration {
+        final int version;
+
+        Migration(int toVersion) { version = toVersion; }
+
+        abstract void apply(SQLiteDatabase db);
+
+        static void createIndex(SQLiteDatabase db, String table, String column) {
+            db.execSQL( "CREATE INDEX IF NOT EXISTS " + table + "_" + column
+                                                     + " ON " + table + " (" + column + ")" );
+        }
+
+        static void addColumn(SQLiteDatabase db, String table, String column, String type) {
+            db.execSQL( "ALTER TABLE " + table + " ADD COLUMN " + column + " " + type );
+        }
+    }
+
+    /** true if any post is without a digest - as a migration leaves them all, to have them
+     *  rewritten - in which case a download must not be taken as unchanged, and skipped. */
+    static boolean rewritePending(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery( db, "SELECT EXISTS (SELECT 1 FROM " + TABLE_NAME
+                                                + " WHERE " + COLUMN_DIGEST + " IS NULL)", null ) != 0;
+    }
+
+    /** builds a new db by creating the version 1 schema and running every migration on it - so
+     *  that new and upgraded installs always end up with identical schemas. */
+    static void createSchema(SQLiteDatabase db) {
+        db.execSQL( SQL_CREATE_ENTRIES );
+        migrate( db, 1, DB_VERSION );
+    }
+
+    /** runs the migrations after oldVersion, up to and including newVersion, in order. */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for ( Migration each : MIGRATIONS ) {
+            if ( each.version > oldVersion && each.version <= newVersion ) {
+                if ( DEBUG ) Log.i( TAG, "Migrating db to version " + each.version );
+                each.apply( db );
+            }
         }
-        // not needed for this demo App.
-        @Override public void onUpgrade(SQLiteDatabase db, int o, int n) {}
     }
 //----------------------------------------------------------------------------------
     final class GetPostBinder extends Binder {
         // private constructor - to prevent outside instantiation.
         private GetPostBinder() {}
 
-        /** method to populate the spinner with userId's */
-        String[] getUsers() { return USERS.toArray( new String[ USERS.size() ] ); }
+        /** method to populate the spinner with userId's - the labels are only built when asked for. */
+        String[] getUsers() {
+            int[] ids = userIds;
+            String[] users = new String[ ids.length + 1 ];
+            String label = getString( R.string.user_list_other_prompts );
+
+            // the String for all users goes at position 0.
+            users[ 0 ] = getString( R.string.user_list_first_prompt );
+
+            for ( int i = 0; i < ids.length; i++ ) users[ i + 1 ] = label + ids[ i ];
+
+            return users;
+        }
+        /** maps a position in the array from getUsers() to its userId, with 0 representing all users. */
+        int getUserIdAt(int position) {
+            int[] ids = userIds;
+            return ( position < 1 || position > ids.length ) ? 0 : ids[ position - 1 ];
+        }
+
+        /** returns a page of rows for the list - just the id, userId and title columns, in post id
+         *  order, starting after the given id, and matching selection (if it is not null).
+         *  (NB data remains encrypted) */
+        Cursor queryPage(String selection, int afterId, int limit) {
+            String where = COLUMN_POST_ID + " > ?";
+            if ( selection != null ) where = "(" + selection + ") AND " + where;
+
+            return database.query( TABLE_NAME, LIST_COLUMNS, where
+                                    , new String[] { String.valueOf( afterId ) }
+                                    , null, null, COLUMN_POST_ID, String.valueOf( limit ) );
+        }
+
+        /** returns a cursor over the in-memory snapshot of the list columns, for the given userId
+         *  (or all users for 0) - or null if there is no snapshot, either because none has been built
+         *  yet or because there are more than MAX_SNAPSHOT_ROWS posts, when queryPage() is to be used.  Filtering this way
+         *  needs no SQL, so is cheap enough to run for every change of user. */
+        Cursor querySnapshot(int userId) {
+            PostSnapshot current = snapshot;
+            return ( current == null ) ? null : current.cursorFor( userId );
+        }
 
-        /** returns cursor from the database according to args. (NB data remains encrypted) */
-        Cursor querySQL(String table, String[] columns, String selection) {
-            return database.query( table, columns, selection, null, null, null, null );
+        /** queries the table of one of the related collections in Endpoints - the columns declared
+         *  as encrypted are returned encrypted, for unencrypt(). */
+        Cursor queryRelated(TableMapping mapping, String selection, String[] args) {
+            return database.query( mapping.table, mapping.columnNames(), selection, args
+                                    , null, null, TableMapping.COLUMN_ID );
         }
-        /** call to abort the timed shutdown that is started by onUnbind() */
+
+        /** returns the list columns of the posts that contain every word in the query (in their
+         *  title or body), in post id order - found through the blind index, without decrypting
+         *  anything.  Returns null if the query has no words long enough to search for. */
+        Cursor search(String query) {
+            Set<String> words = BlindIndex.words( query );
+            if ( words.isEmpty() ) return null;
+
+            String[] tokens = new String[ words.size() ];
+            try {
+                long[] values = BlindIndex.tokens( crypto, words );
+                for ( int i = 0; i < values.length; i++ ) tokens[ i ] = String.valueOf( values[ i ] );
+
+            } catch ( GeneralSecurityException | IllegalStateException e ) {
+                e.printStackTrace();
+                return null;
+            }
+            return database.rawQuery( BlindIndex.searchSql( Endpoints.POSTS, LIST_COLUMNS, tokens.length )
+                                      , tokens );
+        }
+
+        /** returns the decrypted title, body and userId of a post, or null if it is not in the db.
+         *  (Decrypts, so must not be called on the UI thread.) */
+        PostDetail getPost(int postId) {
+            Cursor cursor = database.query( TABLE_NAME, new String[] { COLUMN_USER_ID, COLUMN_TITLE }
+                                            , COLUMN_POST_ID + " = ?"
+                                            , new String[] { String.valueOf( postId ) }
+                                            , null, null, null );
+            try {
+                if ( !cursor.moveToFirst() ) return null;
+
+                return new PostDetail( postId, cursor.getInt( 0 )
+                                     , getTitle( postId, cursor.getString( 1 ) ), getBody( postId ) );
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /** decrypts the body of a post into the cache ahead of it being opened, if it isn't there already. */
+        void prefetchBody(int postId) {
+            if ( bodyCache.get( postId ) == null ) getBody( postId );
+        }
+
+        /** returns the decrypted body of a single post, from the cache if it was opened (or
+         *  prefetched) recently. */
+        String getBody(int postId) {
+            String body = bodyCache.get( postId );
+            if ( body == null ) {
+                body = decryptBody( postId );
+                // a failed decrypt returns an empty String, which is not worth keeping.
+                if ( !body.isEmpty() ) bodyCache.put( postId, body );
+            }
+            return body;
+        }
+
+        // decrypts straight from the mapped BlobStore, without copying the body out first.
+        private String decryptBody(int postId) {
+            try {
+                ByteBuffer sealed = bodies.get( postId, COLUMN_BODY );
+                if ( sealed != null ) return crypto.open( sealed );
+
+            } catch ( IOException | GeneralSecurityException | IllegalStateException e ) {
+                e.printStackTrace();
+                return "";
+            }
+            // a post that has not been rewritten since its body was last kept in the table.
+            Cursor cursor = database.query( TABLE_NAME, new String[] { COLUMN_BODY }
+                                            , COLUMN_POST_ID + " = ? AND " + COLUMN_BODY + " IS NOT NULL"
+                                            , new String[] { String.valueOf( postId ) }
+                                            , null, null, null );
+            String body = cursor.moveToFirst() ? unencrypt( cursor.getString( 0 ) ) : "";
+            cursor.close();
+            return body;
+        }
+
+        /** the size of the file of post bodies, including any garbage not yet compacted away. */
+        long getBodyStoreSize() { return bodies.size(); }
+        /** the number of rows written in each transaction during the next ingest of new data. */
+        int getInsertBatchSize() { return insertBatchSize; }
+
+        void setInsertBatchSize(int size) {
+            if ( size < 1 ) throw new IllegalArgumentException( "Insert batch size must be positive." );
+            insertBatchSize = size;
+        }
+        /** rows per second achieved end-to-end by the most recent ingest of new data (0 if there
+         *  has been none) - from the first token parsed to the last row written. */
+        float getLastIngestRate() { return lastIngestRate; }
+
+        /** selects the pipelined (true) or serial ingest path for the next download of new data. */
+        void setPipelinedIngest(boolean pipelined) { pipelinedIngest = pipelined; }
+
+        boolean isPipelinedIngest() { return pipelinedIngest; }
+
+        /** selects AES-GCM (true) or CBC with HMAC (false) for the values encrypted from now on.
+         *  Values already stored stay readable either way.  Returns false if the device has no
+         *  AES-GCM, leaving CBC in use. */
+        boolean setGcmEncryption(boolean gcm) {
+            gcmEncryption = crypto.setGcm( gcm );
+            return gcmEncryption;
+        }
+
+        boolean isGcmEncryption() { return gcmEncryption; }
+
+        /** selects differential sync (true) - where only new or changed posts are encrypted and
+         *  written, and missing ones deleted - or a full reload under a new key, for the next download. */
+        void setDifferentialSync(boolean differential) { differentialSync = differential; }
+
+        boolean isDifferentialSync() { return differentialSync; }
+
+        /** selects a paged fetch for the next download - pageSize posts to a page, with up to
+         *  parallelism pages downloading at once - or a single request, with a pageSize of 0. */
+        void setPagedFetch(int pageSize, int parallelism) {
+            if ( pageSize < 0 || parallelism < 1 )
+                throw new IllegalArgumentException( "Page size must not be negative, nor parallelism less than 1." );
+            pagedFetchSize = pageSize;
+            pagedFetchParallelism = parallelism;
+        }
+
+        int getPagedFetchSize() { return pagedFetchSize; }
+
+        int getPagedFetchParallelism() { return pagedFetchParallelism; }
+
+        /** the number of page requests that were retried during the last paged fetch. */
+        int getLastFetchRetries() { return lastFetchRetries; }
+
+        /** the least time, in ms, between a successful refresh and the next unforced one. */
+        void setMinRefreshInterval(long millis) { refreshes.setMinInterval( millis ); }
+
+        long getMinRefreshInterval() { return refreshes.getMinInterval(); }
+
+        /** what became of the most recent refresh request - or null if there has been none. */
+        RefreshScheduler.Outcome getLastRefreshOutcome() { return refreshes.getLastOutcome(); }
+
+        /** the number of refresh requests that started a download. */
+        int getRefreshesServed() { return refreshes.getServed(); }
+
+        /** the number of refresh requests answered by the one already in flight. */
+        int getRefreshesMerged() { return refreshes.getMerged(); }
+
+        /** the number of refresh requests turned away by the minimum interval. */
+        int getRefreshesThrottled() { return refreshes.getThrottled(); }
+
+        /** the number of rows written by the last download of new data (every row, for a full reload). */
+        int getLastSyncChanged() { return lastSyncChanged; }
+
+        /** the number of rows deleted by the last differential sync. */
+        int getLastSyncDeleted() { return lastSyncDeleted; }
+
+        /** registers for the data events described in DataListener.  If the data is already ready
+         *  (or has failed) the listener is told so straight away. Call on the main thread only. */
+        void addDataListener(DataListener listener) {
+            dataListeners.add( listener );
+
+            // data kept through a lock isn't ready until the next login - which will say so.
+            if ( dataState == DATA_READY ) {
+                if ( isDataReady() ) listener.onDataReady();
+            }
+            else if ( dataState == DATA_FAILED ) listener.onDataFailed();
+        }
+
+        void removeDataListener(DataListener listener) { dataListeners.remove( listener ); }
+
+        boolean isDataReady() { return dataState == DATA_READY && !locked && crypto.isUnlocked(); }
+
+        /** the number of downloads answered by the http cache without contacting the server. */
+        int getHttpCacheHits() { return SharedHttpClient.getCacheHits(); }
+
+        /** the number of downloads that the server confirmed were unchanged since the cached copy. */
+        int getHttpRevalidations() { return SharedHttpClient.getRevalidations(); }
+
+        /** the number of downloads that fetched a new body. */
+        int getHttpDownloads() { return SharedHttpClient.getDownloads(); }
+
+        /** the total bytes of the bodies that cache hits and revalidations did not need to download. */
+        long getHttpBytesSaved() { return SharedHttpClient.getBytesSaved(); }
+
+        /** the per-stage timings and counts of every refresh so far - network, parse, encrypt,
+         *  insert - and the time from login to the first paint of the list. */
+        ServiceMetrics.Snapshot getMetrics() { return ServiceMetrics.snapshot(); }
+
+        /** call to abort the lock (and so the shutdown) that is started by onUnbind().  Once the
+         *  session has locked, only a login can stop the shutdown. */
         void stopShutdown() {
-            mServiceHandler.removeCallbacks( timedShutdown );
+            mainHandler.removeCallbacks( lockSession );
+        }
+
+        /** how long, in ms, a locked service waits for a login to resume its session before it
+         *  stops - 0 to stop as soon as it locks. */
+        void setResumeGracePeriod(long millis) {
+            if ( millis < 0 ) throw new IllegalArgumentException( "Grace period must not be negative." );
+            resumeGraceMillis = millis;
         }
 
-        /** use the saved key to decrypt strings that have been retrieved from the database.
+        long getResumeGracePeriod() { return resumeGraceMillis; }
+
+        /** the number of logins that found the session's data still in place, and so skipped the
+         *  reload. */
+        int getWarmResumes() { return warmResumes; }
+
+        /** use the session key to decrypt strings that have been retrieved from the database.
         * (NB key is only accessible inside this service as it is saved in securePrefs.) */
         String unencrypt(String scrambled) {
+            // a field missing from the json is stored as null.
+            if ( scrambled == null ) return "";
+
             String unscrambled = "";
-            try { unscrambled = decryptString(
-                                    new AesCbcWithIntegrity.CipherTextIvMac( scrambled )
-                                                    , keys( prefs.getString( "db_key", "" ) ) );
+            try { unscrambled = crypto.decrypt( scrambled );
 
-            } catch ( UnsupportedEncodingException | GeneralSecurityException e ) {
+            } catch ( UnsupportedEncodingException | GeneralSecurityException
+                                                    | IllegalStateException e ) {
                 e.printStackTrace();
             }
             return unscrambled;
         }
+
+        /** returns the decrypted title for the given post, from the cache if it has been seen recently. */
+        String getTitle(int postId, String scrambled) {
+            String title = titleCache.get( postId );
+
+            if ( title == null ) {
+                titleMisses.incrementAndGet();
+                title = decryptTitle( postId, scrambled );
+            }
+            else titleHits.incrementAndGet();
+
+            return title;
+        }
+        /** decrypts the given title into the cache ahead of it being needed, if it isn't there already. */
+        void prefetchTitle(int postId, String scrambled) {
+            if ( titleCache.get( postId ) == null ) decryptTitle( postId, scrambled );
+        }
+
+        private String decryptTitle(int postId, String scrambled) {
+            String title = unencrypt( scrambled );
+            // a failed decrypt returns an empty String, which is not worth keeping.
+            if ( !title.isEmpty() ) titleCache.put( postId, title );
+            return title;
+        }
+        /** the number of getTitle() calls answered from the cache. */
+        int getTitleCacheHits() { return titleHits.get(); }
+
+        /** the number of getTitle() calls that needed a decrypt. */
+        int getTitleCacheMisses() { return titleMisses.get(); }
     }
 //------------------------------------------------------------------------------------
     private final class ServiceHandler extends Handler {
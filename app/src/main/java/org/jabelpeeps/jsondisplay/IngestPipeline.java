@@ -0,0 +1,312 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.os.Process;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * Turns a stream of Json objects into encrypted rows, as declared by a TableMapping, in one of two
+ * ways:-
+ * </p><p>
+ * Serially, where the calling thread parses, encrypts and writes each object in turn; or
+ * </p><p>
+ * Pipelined, where a parser thread hands each object to a pool of encryption workers (one per core),
+ * while the calling thread writes the results in their original order.  The stages are linked by
+ * a bounded queue, so a slow writer holds back the parser, and the number of rows in memory at
+ * once is capped at the queue's capacity whatever the size of the payload.
+ * </p><p>
+ * Either way the RecordSink is only ever called on the thread that called run().
+ * </p><p>
+ * Every row is given a keyed digest of its plaintext.  If the digests of the rows already in the
+ * db are supplied, rows whose digests match are flagged as unchanged and not encrypted at all.
+ * </p> */
+final class IngestPipeline {
+
+    /** one row, carrying plaintext out of the parser, and ciphertext into the sink.  Each value is
+     *  held at its column's index in the mapping - in numbers or texts, according to its type. */
+    static final class Record {
+        final long[] numbers;
+        final String[] texts;
+        long digest;
+        /** the BlindIndex tokens of the searchable columns, or null if the mapping has none. */
+        long[] tokens;
+        /** true if the db already holds this row as it is - the encrypted columns are then left as plaintext. */
+        boolean unchanged;
+        /** the sealed values of any blob columns, which are then null in texts. */
+        byte[][] blobs;
+
+        Record(int columns) {
+            numbers = new long[ columns ];
+            texts = new String[ columns ];
+        }
+
+        /** the row's id, which is always its first column. */
+        int id() { return (int) numbers[ 0 ]; }
+    }
+
+    /** the final (writing) stage of the pipeline. */
+    interface RecordSink {
+        void write(Record record) throws IOException;
+    }
+
+    /** the Json arrays that make up one download, to be run through the pipeline in turn. */
+    interface Payload {
+        /** the next array's byte stream, or null when there are none left. */
+        InputStream next() throws IOException;
+        /** true if the stream last returned by next() is the one that the db was last filled from
+         *  - as a page of a paged fetch can be - so its rows need not be digested or written. */
+        boolean unchanged();
+        /** releases the download, whether or not it was read to the end. */
+        void close();
+    }
+
+    /** the number of rows allowed in flight per encryption worker, before the parser has to wait. */
+    private static final int QUEUE_DEPTH_PER_WORKER = 16;
+
+    // a marker put on the queue by the parser after the last object.
+    private static final Future<Record> END_OF_INPUT = completed( new Callable<Record>() {
+        @Override public Record call() { return null; }
+    } );
+
+    private static final ThreadFactory BACKGROUND_THREADS = new ThreadFactory() {
+        @Override public Thread newThread(final Runnable runnable) {
+            return new Thread( new Runnable() {
+                @Override public void run() {
+                    Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+                    runnable.run();
+                }
+            }, "IngestEncryptor" );
+        }
+    };
+
+    private final TableMapping mapping;
+    private final SessionCrypto crypto;
+    private final RowDigests previous;
+    private final int workers;
+    private float recordsPerSecond = 0f;
+    private long totalRecords = 0;
+    private long totalNanos = 0;
+
+    /** @param existing the digests of the rows already in the db, or null if they are all to be replaced.
+     *  @param encryptWorkers the size of the encryption pool, or 0 to run the serial path. */
+    IngestPipeline(TableMapping tableMapping, SessionCrypto sessionCrypto, RowDigests existing
+                                                                         , int encryptWorkers) {
+        mapping = tableMapping;
+        crypto = sessionCrypto;
+        previous = existing;
+        workers = encryptWorkers;
+    }
+
+    /** one encryption worker per core. */
+    static int defaultWorkers() { return Runtime.getRuntime().availableProcessors(); }
+
+    /** end-to-end throughput over every call to run() so far, from the first token parsed to the
+     *  last row written. */
+    float recordsPerSecond() { return recordsPerSecond; }
+
+    /** reads every object from the parser (which should be positioned before the opening array)
+     *  into the sink, returning the number of rows written. */
+    int run(JsonParser json, RecordSink sink) throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+
+        int count = ( workers > 0 ) ? runPipelined( json, sink )
+                                    : runSerial( json, sink );
+
+        ServiceMetrics.recordParsed( count );
+        totalRecords += count;
+        totalNanos += System.nanoTime() - start;
+        recordsPerSecond = ( totalNanos == 0 ) ? 0f : totalRecords * 1e9f / totalNanos;
+        return count;
+    }
+
+    /** reads every object from the parser into the sink flagged as unchanged, without digesting
+     *  or encrypting it - for data that the db is known to hold already.  Returns the number of
+     *  rows read. */
+    int skim(JsonParser json, RecordSink sink) throws IOException {
+        int count = 0;
+        json.nextToken();
+
+        for ( Record record = readRecord( json ); record != null; record = readRecord( json ) ) {
+            record.unchanged = true;
+            sink.write( record );
+            count++;
+        }
+        ServiceMetrics.recordParsed( count );
+        return count;
+    }
+
+    private int runSerial(JsonParser json, RecordSink sink) throws IOException, GeneralSecurityException {
+        int count = 0;
+        // advance parser onto the opening array...
+        json.nextToken();
+
+        // ...and then take each object through all the stages in turn.
+        for ( Record record = readRecord( json ); record != null; record = readRecord( json ) ) {
+            encrypt( record );
+            sink.write( record );
+            count++;
+        }
+        return count;
+    }
+
+    private int runPipelined(final JsonParser json, RecordSink sink)
+                                                    throws IOException, GeneralSecurityException {
+        final ExecutorService encryptors = Executors.newFixedThreadPool( workers, BACKGROUND_THREADS );
+        // holds the pending results in the order the objects were parsed - a full queue blocks the parser.
+        final BlockingQueue<Future<Record>> ordered =
+                            new ArrayBlockingQueue<Future<Record>>( workers * QUEUE_DEPTH_PER_WORKER );
+
+        Thread parser = new Thread( new Runnable() {
+            @Override public void run() {
+                Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+                try {
+                    Future<Record> last = END_OF_INPUT;
+                    try {
+                        json.nextToken();
+
+                        for ( Record record = readRecord( json );
+                                            record != null; record = readRecord( json ) ) {
+                            ordered.put( encryptors.submit( new EncryptTask( record ) ) );
+                        }
+                    } catch ( final IOException | RuntimeException e ) {
+                        // pass the failure down the queue, so the writer sees it in order.
+                        last = completed( new Callable<Record>() {
+                            @Override public Record call() throws Exception { throw e; }
+                        } );
+                    }
+                    ordered.put( last );
+
+                } catch ( InterruptedException e ) {
+                    // the writer has stopped early, so there is no-one left to hand rows to.
+                }
+            }
+        }, "IngestParser" );
+        parser.start();
+
+        int count = 0;
+        try {
+            for ( Future<Record> next = ordered.take(); next != END_OF_INPUT; next = ordered.take() ) {
+                sink.write( next.get() );
+                count++;
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Ingest interrupted while waiting for rows." );
+
+        } catch ( ExecutionException e ) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException ) throw (IOException) cause;
+            if ( cause instanceof GeneralSecurityException ) throw (GeneralSecurityException) cause;
+            if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+            throw new IOException( cause );
+
+        } finally {
+            // if we are leaving early, this releases a parser that is blocked on a full queue.
+            parser.interrupt();
+            encryptors.shutdownNow();
+        }
+        return count;
+    }
+
+    // reads the next object from the array, returning null when the array is finished.
+    private Record readRecord(JsonParser json) throws IOException {
+        JsonToken token = json.nextValue();
+
+        if ( token == JsonToken.END_ARRAY ) return null;
+        if ( token != JsonToken.START_OBJECT )
+            throw new IOException( "Unexpected Json token in " + mapping.table + " array: " + token );
+
+        Record record = new Record( mapping.columns.length );
+
+        while ( json.nextToken() != JsonToken.END_OBJECT ) {
+            int column = mapping.columnFor( json.getCurrentName() );
+            token = json.nextToken();
+
+            // skip over any fields that we don't store, or that aren't the expected kind of value.
+            if ( column < 0 ) {
+                json.skipChildren();
+            }
+            else if ( mapping.columns[ column ].text ) {
+                if ( token.isScalarValue() && token != JsonToken.VALUE_NULL )
+                    record.texts[ column ] = json.getText();
+                else json.skipChildren();
+            }
+            else {
+                if ( token == JsonToken.VALUE_NUMBER_INT )
+                    record.numbers[ column ] = json.getLongValue();
+                else json.skipChildren();
+            }
+        }
+        return record;
+    }
+
+    private void encrypt(Record record) throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        try {
+            digestAndEncrypt( record );
+        } finally {
+            ServiceMetrics.recordEncrypt( System.nanoTime() - start );
+        }
+    }
+
+    private void digestAndEncrypt(Record record) throws IOException, GeneralSecurityException {
+        record.digest = crypto.digest( mapping.columns, record.numbers, record.texts );
+
+        if ( previous != null && previous.matches( record.id(), record.digest ) ) {
+            record.unchanged = true;
+            return;
+        }
+        if ( mapping.hasSearchIndex() ) {
+            Set<String> words = new LinkedHashSet<String>();
+            for ( int i = 0; i < mapping.columns.length; i++ )
+                if ( mapping.columns[ i ].searchable ) words.addAll( BlindIndex.words( record.texts[ i ] ) );
+
+            record.tokens = BlindIndex.tokens( crypto, words );
+        }
+        for ( int i = 0; i < mapping.columns.length; i++ ) {
+            if ( !mapping.columns[ i ].encrypted || record.texts[ i ] == null ) continue;
+
+            if ( mapping.columns[ i ].blob ) {
+                if ( record.blobs == null ) record.blobs = new byte[ mapping.columns.length ][];
+                record.blobs[ i ] = crypto.seal( record.texts[ i ] );
+                record.texts[ i ] = null;
+            }
+            else record.texts[ i ] = crypto.encrypt( record.texts[ i ] );
+        }
+    }
+
+    private final class EncryptTask implements Callable<Record> {
+        private final Record record;
+
+        EncryptTask(Record row) { record = row; }
+
+        @Override public Record call() throws Exception {
+            encrypt( record );
+            return record;
+        }
+    }
+
+    private static Future<Record> completed(Callable<Record> result) {
+        FutureTask<Record> future = new FutureTask<Record>( result );
+        future.run();
+        return future;
+    }
+}
@@ -1,53 +1,95 @@
 package org.jabelpeeps.jsondisplay;
 
 import android.app.Fragment;
+import android.app.LoaderManager;
+import android.content.Loader;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+/**
+ * Shows a single post.  Its arguments carry only ids - the post's contents are decrypted in the
+ * background by a DetailLoader, so opening a post never waits on a decrypt, and no plaintext is
+ * ever parcelled into the arguments (or the saved state) of the fragment.
+ */
+public class ItemDetailFragment extends Fragment
+                                implements LoaderManager.LoaderCallbacks<GetItemsService.PostDetail> {
+    /** The fragment argument key for the post's _id. */
+    public static final String ARG_POST_ID = "post_id";
+    /** The fragment argument key for the _ids of the posts either side of it in the list. */
+    public static final String ARG_NEIGHBOUR_IDS = "neighbour_ids";
+
+    private static final int DETAIL_LOADER_ID = 0;
+
+    private int postId;
+    private int[] neighbourIds;
+    /** The content this fragment is presenting, once it has loaded. */
+    private GetItemsService.PostDetail post;
+    /** Whether the loader has delivered yet - after which a null post means it could not be found. */
+    private boolean loaded;
+    private View rootView;
 
-public class ItemDetailFragment extends Fragment {
-    /** The fragment argument key for the argument containing the data. */
-    public static final String ARG_POS = "item_pos";
-    public static final String ARG_USER = "user";
-    public static final String ARG_TITLE = "title";
-    public static final String ARG_BODY = "body";
-    
-    /** The content this fragment is presenting. */
-    private int pos;
-    private String user;
-    private String title;
-    private String body;
-    
     /** Mandatory empty constructor. */
     public ItemDetailFragment() {}
 
-    int getPos() { return pos; }
-    
+    int getPostId() { return postId; }
+
     @Override public void onCreate(Bundle savedInstanceState) {
         super.onCreate( savedInstanceState );
 
-        if ( getArguments().containsKey( ARG_POS ) )
-            pos = getArguments().getInt( ARG_POS );
-        if ( getArguments().containsKey( ARG_USER ) )
-            user = getArguments().getString( ARG_USER );
-        if ( getArguments().containsKey( ARG_TITLE ) )
-            title = getArguments().getString( ARG_TITLE );
-        if ( getArguments().containsKey( ARG_BODY ) )
-            body = getArguments().getString( ARG_BODY );
+        postId = getArguments().getInt( ARG_POST_ID );
+        neighbourIds = getArguments().getIntArray( ARG_NEIGHBOUR_IDS );
     }
-    
+
     @Override public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle b) {
 
-        View rootView = inflater.inflate( R.layout.fragment_item_detail, container, false );
-        
-        // Show the content as text in the appropriate TextView.
-        if ( user != null ) ( (TextView)rootView.findViewById( R.id.item_user ) ).setText( user );
-        if ( title != null ) ( (TextView)rootView.findViewById( R.id.item_title ) ).setText( title );
-        if ( body != null ) ( (TextView)rootView.findViewById( R.id.item_body ) ).setText( body );
-        
+        rootView = inflater.inflate( R.layout.fragment_item_detail, container, false );
+        showPost();
+
         return rootView;
     }
+
+    @Override public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated( savedInstanceState );
+        getLoaderManager().initLoader( DETAIL_LOADER_ID, null, this );
+    }
+
+    @Override public void onDestroyView() {
+        super.onDestroyView();
+        rootView = null;
+    }
+
+    @Override public Loader<GetItemsService.PostDetail> onCreateLoader(int id, Bundle args) {
+        return new ItemLoaderFragment.DetailLoader( getActivity(), postId, neighbourIds );
+    }
+
+    @Override public void onLoadFinished(Loader<GetItemsService.PostDetail> loader
+                                                        , GetItemsService.PostDetail data) {
+        post = data;
+        loaded = true;
+        showPost();
+    }
+
+    @Override public void onLoaderReset(Loader<GetItemsService.PostDetail> loader) {
+        post = null;
+        loaded = false;
+    }
+
+    // Show the content as text in the appropriate TextViews - or a prompt, until it has loaded (or
+    // if it could not be).
+    private void showPost() {
+        if ( rootView == null ) return;
+
+        TextView body = (TextView) rootView.findViewById( R.id.item_body );
+
+        if ( post == null ) {
+            body.setText( loaded ? R.string.prompt_post_unavailable : R.string.prompt_loading );
+            return;
+        }
+        ( (TextView) rootView.findViewById( R.id.item_user ) ).setText( "Post by userID:- " + post.userId );
+        ( (TextView) rootView.findViewById( R.id.item_title ) ).setText( post.title );
+        body.setText( post.body );
+    }
 }
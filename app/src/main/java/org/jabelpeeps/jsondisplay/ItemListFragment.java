@@ -7,7 +7,9 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.animation.AnimationUtils;
+import android.widget.AbsListView;
 import android.widget.ListView;
 
 /**
@@ -29,9 +31,12 @@ public class ItemListFragment extends ListFragment implements ItemLoaderFragment
     private int mActivatedPosition = ListView.INVALID_POSITION;
 
     private ItemLoaderFragment.PostAdapter listAdapter;
+    private TitlePrefetcher prefetcher;
     private View mProgressContainer;
     private View mListContainer;
     private boolean mListShown = false;
+    /** Whether firstPaint is waiting on the list's current view tree. */
+    private boolean firstPaintPending = false;
 
     /** A callback interface that all activities containing this fragment must implement. */
     public interface ListFragmentCallbacks {
@@ -39,11 +44,14 @@ public class ItemListFragment extends ListFragment implements ItemLoaderFragment
         void onItemDetailRequested(int id);
         /** Callback to check the display mode of the activity */
         boolean isInTwoPanes();
+        /** Callback for when the list has been scrolled close to the last of its rows. */
+        void onListEndApproached();
     }
     /** dummy implementation of ListFragmentCallbacks interface. Used when fragment is not attached to an activity. */
     private static final ListFragmentCallbacks sDummyCallbacks = new ListFragmentCallbacks() {
         @Override public void onItemDetailRequested(int id) {}
         @Override public boolean isInTwoPanes() { return false; }
+        @Override public void onListEndApproached() {}
     };
 
     /** Mandatory empty constructor */
@@ -65,6 +73,12 @@ public class ItemListFragment extends ListFragment implements ItemLoaderFragment
         setRetainInstance( true );
         listAdapter = new ItemLoaderFragment.PostAdapter();
         setListAdapter( listAdapter );
+        prefetcher = new TitlePrefetcher( listAdapter );
+    }
+
+    @Override public void onDestroy() {
+        super.onDestroy();
+        prefetcher.shutdown();
     }
 
     @Override
@@ -84,8 +98,11 @@ public class ItemListFragment extends ListFragment implements ItemLoaderFragment
         mProgressContainer = view.findViewById( R.id.progressContainer );
         mListContainer = view.findViewById( R.id.listContainer );
         setListShown( false );
+        // a listener left on the old view tree went with it.
+        firstPaintPending = false;
 
         getListView().setFastScrollEnabled( true );
+        getListView().setOnScrollListener( scrollListener );
 
         // Restore the previously serialized activated item position.
         if ( savedInstanceState != null
@@ -123,6 +140,28 @@ public class ItemListFragment extends ListFragment implements ItemLoaderFragment
         myCallbacks.onItemDetailRequested( position );
     }
 
+    /** the number of rows from the end of the list, at which the next page is asked for. */
+    private static final int PAGE_AHEAD_ROWS = 40;
+
+    private final AbsListView.OnScrollListener scrollListener = new AbsListView.OnScrollListener() {
+
+        @Override public void onScrollStateChanged(AbsListView view, int scrollState) {
+            // decrypts titles just off-screen while the list scrolls, so they are ready when bound.
+            prefetcher.onScrollStateChanged( view, scrollState );
+        }
+
+        @Override public void onScroll(AbsListView view, int first, int visible, int total) {
+            prefetcher.onScroll( view, first, visible, total );
+
+            // fetch the next page of rows before the user runs out of them.
+            if ( total > 0 && first + visible >= total - PAGE_AHEAD_ROWS )
+                myCallbacks.onListEndApproached();
+        }
+    };
+
+    /** sets how many titles either side of the visible rows are decrypted ahead of being shown. */
+    void setPrefetchDistance(int titles) { prefetcher.setDistance( titles ); }
+
     private void setActivateOnItemClick(boolean activateOnItemClick) {
         // in CHOICE_MODE_SINGLE, ListView will give touched items the 'activated' state.
         getListView().setChoiceMode( activateOnItemClick ? ListView.CHOICE_MODE_SINGLE
@@ -139,13 +178,31 @@ public class ItemListFragment extends ListFragment implements ItemLoaderFragment
 
     // callback from ItemLoaderFragment
     public void swapCursorForThis(Cursor cursor) {
-        listAdapter.swapCursor( cursor );
+        // the list is only passed while it has views, for the adapter to update in place.
+        listAdapter.swapCursor( cursor, ( getView() == null ) ? null : getListView() );
 
-        if ( cursor != null && cursor.getCount() != 0 )
+        if ( cursor != null && cursor.getCount() != 0 ) {
             setListShown( true );
+
+            if ( !firstPaintPending && ServiceMetrics.awaitingListPaint() ) {
+                firstPaintPending = true;
+                getListView().getViewTreeObserver().addOnPreDrawListener( firstPaint );
+            }
+        }
         else
             setListShown( false );
     }
+
+    // stops the clock that ServiceMetrics started at login, on the first frame with posts in it.
+    private final ViewTreeObserver.OnPreDrawListener firstPaint = new ViewTreeObserver.OnPreDrawListener() {
+        @Override public boolean onPreDraw() {
+            getListView().getViewTreeObserver().removeOnPreDrawListener( this );
+            firstPaintPending = false;
+            ServiceMetrics.markListPainted();
+            return true;
+        }
+    };
+
     // See explanation in onViewCreated() regarding these methods.
     @Override public void setListShown(boolean shown) {
         setListShown( shown, true );
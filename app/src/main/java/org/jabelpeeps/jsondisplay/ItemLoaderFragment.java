@@ -10,17 +10,24 @@ import android.content.Intent;
 import android.content.Loader;
 import android.content.ServiceConnection;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.text.TextUtils;
+import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
-import android.widget.CursorAdapter;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.Spinner;
 import android.widget.SpinnerAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 
 public class ItemLoaderFragment extends Fragment implements LoaderManager.LoaderCallbacks {
 
@@ -33,6 +40,11 @@ public class ItemLoaderFragment extends Fragment implements LoaderManager.Loader
 
     /** The currently selected position on the spinner */
     private static int mSpinnerPosition = 0;
+    /** the id of the loader for search results - well clear of the spinner positions. */
+    private static final int SEARCH_LOADER_ID = Integer.MAX_VALUE;
+    private static final String ARG_QUERY = "query";
+    /** the search whose results are showing in the list, or null when the list is showing posts by user. */
+    private static String searchQuery = null;
 
     /**
      * Interface to allow this fragment to provide new Cursors to the listView when a selection
@@ -70,44 +82,79 @@ public class ItemLoaderFragment extends Fragment implements LoaderManager.Loader
     @Override public void onDetach() {
         super.onDetach();
         mListener = null;
+        if ( postBinder != null ) postBinder.removeDataListener( dataListener );
         parentActivity.unbindService( myConnection );
         postBinder = null;
     }
 
-    boolean isBound() { return postBinder != null; }
-
 //------------------------------------------------------------------------------------------------
-    private volatile boolean updateInProgress = false;
-
-    private synchronized void updateListAdapter() {
+    private void updateListAdapter() {
         // As the update will fail unless the database in GetItemService is properly set up, this
-        // method checks the flag for that, and either runs the 'startLoading' runnable directly,
-        // or initiates a new thread that will sleep until the flag turns true, and then initiates
-        // the same runnable - calling back to the UI thread to do so.
-        if ( GetItemsService.dbLoaded ) startLoading.run();
+        // method checks for that first.  If it isn't ready, dataListener will call back here as
+        // soon as it is.
+        if ( postBinder == null || !postBinder.isDataReady() ) return;
+
+        if ( searchQuery != null ) {
+            Bundle args = new Bundle();
+            args.putString( ARG_QUERY, searchQuery );
+            loaderManager.restartLoader( SEARCH_LOADER_ID, args, this );
+        }
+        else
+            loaderManager.initLoader( mSpinnerPosition, null, this )
+                         .startLoading();
+    }
+
+    /** shows the posts containing every word of the query in the list - or, with a null query,
+     *  goes back to showing the posts for the user selected on the spinner. */
+    void search(String query) {
+        searchQuery = ( query == null || query.trim().isEmpty() ) ? null : query;
 
-        else if ( !updateInProgress ) {
-            updateInProgress = true;
+        if ( searchQuery == null ) loaderManager.destroyLoader( SEARCH_LOADER_ID );
+        updateListAdapter();
+    }
 
-            new Thread( new Runnable() {
-                @Override public void run() {
-                    while ( !GetItemsService.dbLoaded ) {
-                        try {
-                            Thread.sleep( 100 );
+    /** the search that the list is showing the results of, or null. */
+    String getSearchQuery() { return searchQuery; }
 
-                        } catch ( InterruptedException e ) { e.printStackTrace(); }
-                    }
-                    getActivity().runOnUiThread( startLoading );
-                }
-            }).start();
-        }
+    // the loader whose results the list should be showing.
+    private static int currentLoaderId() {
+        return ( searchQuery != null ) ? SEARCH_LOADER_ID : mSpinnerPosition;
     }
 
-    private final Runnable startLoading = new Runnable() {
-        @Override public void run ( ) {
-            loaderManager.initLoader( mSpinnerPosition, null, ItemLoaderFragment.this )
-                         .startLoading();
-            updateInProgress = false;
+    // receives the data events from the service, in place of polling it for readiness.
+    private final GetItemsService.DataListener dataListener = new GetItemsService.DataListener() {
+
+        @Override public void onDataReady() {
+            // this initialises the cursorLoader for the initial view of the posts.
+            updateListAdapter();
+            // and the spinner dropdown.
+            setupSpinner();
+        }
+
+        @Override public void onDataFailed() {
+            // only worth a mention if there is nothing else to show.
+            if ( postBinder != null && !postBinder.isDataReady() ) {
+                Toast toast = Toast.makeText( parentActivity, R.string.prompt_data_failed
+                                                            , Toast.LENGTH_LONG );
+                toast.setGravity( Gravity.CENTER, 0, 0 );
+                toast.show();
+            }
+        }
+
+        @Override public void onDataChanged() {
+            // every loader's cursor is now out of date - those that are started reload now, the
+            // rest will when they are next started.
+            int loaders = ( spinnerAdapter == null ) ? 1 : spinnerAdapter.getCount();
+
+            for ( int i = 0; i < loaders; i++ ) {
+                Loader loader = loaderManager.getLoader( i );
+                if ( loader != null ) loader.onContentChanged();
+            }
+            Loader search = loaderManager.getLoader( SEARCH_LOADER_ID );
+            if ( search != null ) search.onContentChanged();
+
+            // the users may have changed too.
+            setupSpinner();
         }
     };
 //-------------------------------------------------------------------------------------------------
@@ -120,10 +167,8 @@ public class ItemLoaderFragment extends Fragment implements LoaderManager.Loader
             postBinder = (GetItemsService.GetPostBinder) service;
             // stops delayed shutdown that runs to stop service when unbound for a certain time.
             postBinder.stopShutdown();
-            // this initialises the cursorLoader for the initial view of the posts.
-            updateListAdapter();
-            // starts a thread to setup the spinner dropdown.
-            setupSpinner();
+            // the listener is called straight back if the data is ready already.
+            postBinder.addDataListener( dataListener );
         }
         // this method is only called following an unplanned disconnection from the service.
         @Override public void onServiceDisconnected(ComponentName name) {
@@ -132,105 +177,145 @@ public class ItemLoaderFragment extends Fragment implements LoaderManager.Loader
     };
 
 //----------------------------------------------------------spinner setup-------------------
-    private volatile boolean setupActive = false;
 
-    private synchronized void setupSpinner() {
-        // a simple lock block to only start the process if it is not already running.
-        if ( !setupActive ) {
-            setupActive = true;
-            new Thread( spinnerSetup ).start();
-        }
-    }
+    private void setupSpinner() {
+        // first lets get an appropriate context, the themedContext is best, but might be null.
+        Context context = parentActivity.getBaseContext();
 
-    // Runnable for use by the method above, to avoid the sleep() call blocking the UI thread.
-    private final Runnable spinnerSetup = new Runnable() {
-        @Override public void run() {
-            // this method cannot succeed until the data has been properly downloaded and parsed,
-            // so we will sleep the thread for 0.1 sec naps until it has.
-            while ( !GetItemsService.dbLoaded ) {
-                try {
-                    Thread.sleep( 100 );
-                } catch ( InterruptedException e ) {
-                    e.printStackTrace();
-                }
-            }
-            // first lets get an appropriate context, the themedContext is best, but might be null.
-            Context context = parentActivity.getBaseContext();
-
-            if ( parentActivity.getSupportActionBar() != null )
-                context = parentActivity.getSupportActionBar().getThemedContext();
-
-            // now we retrieve the spinner from the layout, and add an array adapter to provide
-            // its content - which is retrieved from the data service.
-            spinner = (Spinner) parentActivity.findViewById( R.id.item_list_spinner );
-
-            spinnerAdapter = new ArrayAdapter<>( context
-                                                , android.R.layout.simple_spinner_dropdown_item
-                                                , postBinder.getUsers() );
-
-            // the last stages of the setup need to run on the UI thread, so another Runnable...
-            getActivity().runOnUiThread( new Runnable() {
-                @Override public void run() {
-                    spinner.setAdapter( spinnerAdapter );
-                    spinner.setOnItemSelectedListener( spinnerListener );
-                    spinner.setSelection( mSpinnerPosition );
-                    setupActive = false;
-                }
-            } );
-        }
-    };
+        if ( parentActivity.getSupportActionBar() != null )
+            context = parentActivity.getSupportActionBar().getThemedContext();
+
+        // now we retrieve the spinner from the layout, and add an array adapter to provide
+        // its content - which is retrieved from the data service.
+        spinner = (Spinner) parentActivity.findViewById( R.id.item_list_spinner );
+
+        spinnerAdapter = new ArrayAdapter<>( context
+                                            , android.R.layout.simple_spinner_dropdown_item
+                                            , postBinder.getUsers() );
+
+        spinner.setAdapter( spinnerAdapter );
+        spinner.setOnItemSelectedListener( spinnerListener );
+        spinner.setSelection( mSpinnerPosition );
+    }
     // Having the spinner's listener as an anonymous class within the method can cause memory leaks.
     private final AdapterView.OnItemSelectedListener
                             spinnerListener = new AdapterView.OnItemSelectedListener() {
         @Override public void onItemSelected(AdapterView<?> parent, View v, int item, long id) {
+            // (this is also called when the spinner is first set up, which shouldn't end a search.)
+            if ( item == mSpinnerPosition && searchQuery != null ) return;
+
             mSpinnerPosition = item;
-            updateListAdapter();
+            search( null );
         }
         @Override public void onNothingSelected(AdapterView<?> parent) {
             updateListAdapter();
         }
     };
 
+    /** asks the current loader for its next page of posts - called as the list nears its end. */
+    void loadMorePosts() {
+        Loader loader = loaderManager.getLoader( currentLoaderId() );
+        if ( loader instanceof MyCursorLoader ) ( (MyCursorLoader) loader ).loadMore();
+    }
+
 //------------------------------------------------------------LoaderManager Callbacks--------------
 
     // creates the loaders when requested via a call to LoaderManage.initialise()
     @Override public Loader onCreateLoader(int id, Bundle args) {
 
-        return new MyCursorLoader( parentActivity.getApplication(), id );
+        if ( id == SEARCH_LOADER_ID )
+            return new SearchLoader( parentActivity.getApplication(), args.getString( ARG_QUERY ) );
+
+        // the loader ids are spinner positions, so they need translating into userIds.
+        return new MyCursorLoader( parentActivity.getApplication(), postBinder.getUserIdAt( id ) );
     }
     // method called when loaders find new data.
     @Override public void onLoadFinished(Loader loader, Object data) {
 
-        if ( loader.getId() == mSpinnerPosition )
+        if ( loader.getId() == currentLoaderId() )
             mListener.swapCursorForThis( (Cursor) data );
     }
     // method called when loader's data is no longer available.
     @Override public void onLoaderReset(Loader loader) {
 
-        if ( loader.getId() == mSpinnerPosition )
+        if ( loader.getId() == currentLoaderId() )
             mListener.swapCursorForThis( null );
     }
 
 //----------------------------------------------------------------------------------------------
-    /** A customised CursorLoader that directly queries the SQLite database, rather than needing
+    /** <p>
+     * A customised CursorLoader that directly queries the SQLite database, rather than needing
      * a content provider to handle the queries.  The int parameter specifies the userID of posts
-     * in the returned Cursor */
+     * in the returned Cursor.
+     * </p><p>
+     * Rows are fetched a page at a time with keyset pagination (_id greater than the last one
+     * fetched), and only the columns that the list shows, so the body ciphertext never passes
+     * through the list's cursors.  Each further page is asked for with loadMore() as the user
+     * scrolls, and delivered as a PagedCursor spanning all the pages fetched so far.
+     * </p><p>
+     * Once the service holds an in-memory snapshot of the list, the rows are filtered from that
+     * instead, and delivered whole as a single (complete) page.
+     * </p> */
     public static class MyCursorLoader extends AsyncTaskLoader<Cursor> {
 
-        private Cursor mCursor;
+        /** the number of rows fetched per page. */
+        static final int PAGE_SIZE = 100;
+
+        private volatile PagedCursor mCursor;
+        private final int userId;
         private String query = null;
+        /** set when the next load is to add a page to mCursor, rather than start again. */
+        private volatile boolean appendPending = false;
+        /** the number of rows a fresh load should cover, so a reload doesn't lose the user's place. */
+        private volatile int rowsWanted = PAGE_SIZE;
 
         public MyCursorLoader(Context context, int user) {
             super( context );
+            userId = user;
             // the loader with userId = 0 represents the list that contains all the posts.
             // leaving the query string as null generates a Cursor containing all the rows.
             if ( user != 0 )
                 query = GetItemsService.COLUMN_USER_ID + " = " + user;
         }
 
+        /** asks for the next page of rows, unless the last page has been reached (or is on its way). */
+        void loadMore() {
+            PagedCursor current = mCursor;
+            if ( current == null || current.complete || appendPending ) return;
+
+            appendPending = true;
+            forceLoad();
+        }
+
         /* Runs on a worker thread */
         @Override public Cursor loadInBackground() {
-            return postBinder.querySQL( GetItemsService.TABLE_NAME, null, query );
+            PagedCursor current = appendPending ? mCursor : null;
+
+            if ( current == null ) {
+                // the service's snapshot holds every row already, so there are no more pages to come.
+                // Large datasets have no snapshot, and are paged from the db below.
+                Cursor all = postBinder.querySnapshot( userId );
+                if ( all != null ) return new PagedCursor( new Cursor[] { all }, Integer.MAX_VALUE, true );
+            }
+
+            Cursor[] pages = ( current == null ) ? new Cursor[0] : current.pages;
+            int afterId = ( current == null ) ? Integer.MIN_VALUE : current.lastId;
+            int limit = ( current == null ) ? Math.max( PAGE_SIZE, rowsWanted ) : PAGE_SIZE;
+
+            Cursor page = postBinder.queryPage( query, afterId, limit );
+            // getCount() fills the page's window here, rather than on the UI thread.
+            int count = page.getCount();
+            int lastId = afterId;
+
+            if ( count > 0 ) {
+                page.moveToLast();
+                lastId = page.getInt( GetItemsService.COLUMN_POST_ID_INDEX );
+            }
+            Cursor[] all = new Cursor[ pages.length + 1 ];
+            System.arraycopy( pages, 0, all, 0, pages.length );
+            all[ pages.length ] = page;
+
+            return new PagedCursor( all, lastId, count < limit );
         }
 
         /* Runs on the UI thread */
@@ -240,12 +325,18 @@ public class ItemLoaderFragment extends Fragment implements LoaderManager.Loader
                 if ( cursor != null ) cursor.close();
                 return;
             }
-            Cursor oldCursor = mCursor;
-            mCursor = cursor;
+            PagedCursor oldCursor = mCursor;
+            PagedCursor newCursor = (PagedCursor) cursor;
+            mCursor = newCursor;
+            appendPending = false;
+
+            if ( newCursor != null ) rowsWanted = Math.max( PAGE_SIZE, newCursor.getCount() );
 
             if ( isStarted() ) super.deliverResult( cursor );
 
-            if ( oldCursor != null && oldCursor != cursor && !oldCursor.isClosed() ) {
+            // an appended page shares the old cursor's pages, so only a fresh result frees them.
+            if ( oldCursor != null && oldCursor != newCursor && !oldCursor.isClosed()
+                                    && ( newCursor == null || !newCursor.continues( oldCursor ) ) ) {
                 oldCursor.close();
             }
         }
@@ -254,6 +345,80 @@ public class ItemLoaderFragment extends Fragment implements LoaderManager.Loader
             if ( takeContentChanged() || mCursor == null ) forceLoad();
         }
 
+        // changed content means starting again from the first page.
+        @Override public void onContentChanged() {
+            appendPending = false;
+            super.onContentChanged();
+        }
+
+        @Override protected void onStopLoading() { cancelLoad(); }
+
+        @Override public void onCanceled(Cursor cursor) {
+            if ( cursor == null || cursor.isClosed() ) return;
+
+            PagedCursor current = mCursor;
+            // only the page that was added belongs to a cancelled append - the rest are in use.
+            if ( current != null && ( (PagedCursor) cursor ).continues( current ) )
+                ( (PagedCursor) cursor ).closeNewestPage();
+            else
+                cursor.close();
+        }
+
+        @Override protected void onReset() {
+            super.onReset();
+            onStopLoading();
+
+            if ( mCursor != null && !mCursor.isClosed() ) mCursor.close();
+            mCursor = null;
+        }
+    }
+
+    /** <p>
+     *  A loader for the results of a search through the service's blind index.
+     *  </p><p>
+     *  The results are usually few, so they are fetched in one go.  A query with no words worth
+     *  searching for gives an empty cursor.
+     *  </p> */
+    static class SearchLoader extends AsyncTaskLoader<Cursor> {
+
+        private final String query;
+        private Cursor mCursor;
+
+        SearchLoader(Context context, String searchQuery) {
+            super( context );
+            query = searchQuery;
+        }
+
+        /* Runs on a worker thread */
+        @Override public Cursor loadInBackground() {
+            Cursor results = postBinder.search( query );
+            if ( results == null )
+                return new MatrixCursor( new String[] { "_id", GetItemsService.COLUMN_USER_ID, "title" } );
+
+            // fill the cursor's window here, rather than on the UI thread.
+            results.getCount();
+            return results;
+        }
+
+        /* Runs on the UI thread */
+        @Override public void deliverResult(Cursor cursor) {
+            if ( isReset() ) {
+                if ( cursor != null ) cursor.close();
+                return;
+            }
+            Cursor oldCursor = mCursor;
+            mCursor = cursor;
+
+            if ( isStarted() ) super.deliverResult( cursor );
+
+            if ( oldCursor != null && oldCursor != cursor && !oldCursor.isClosed() ) oldCursor.close();
+        }
+
+        @Override protected void onStartLoading() {
+            if ( mCursor != null ) deliverResult( mCursor );
+            if ( takeContentChanged() || mCursor == null ) forceLoad();
+        }
+
         @Override protected void onStopLoading() { cancelLoad(); }
 
         @Override public void onCanceled(Cursor cursor) {
@@ -268,63 +433,269 @@ public class ItemLoaderFragment extends Fragment implements LoaderManager.Loader
             mCursor = null;
         }
     }
-//----------------------------------------------------------------------------------------------
 
     /** <p>
-     *  A custom CursorAdapter to provide post titles to the listView and body text to the detail
-     *  views.
+     *  A loader for the decrypted contents of one post, for ItemDetailFragment - so that opening a
+     *  post never decrypts on the UI thread.
      *  </p><p>
-     *  As the database stores these strings in an encrypted format, the adapter uses a callback
-     *  on the binder interface to decrypt the strings before returning them.
+     *  Once the post is loaded, the bodies of its neighbours in the list are decrypted into the
+     *  service's cache on another thread, so that they are ready when they are opened in turn.
      *  </p> */
+    static class DetailLoader extends AsyncTaskLoader<GetItemsService.PostDetail> {
+
+        private final int postId;
+        private final int[] neighbourIds;
+        private GetItemsService.PostDetail detail;
+
+        DetailLoader(Context context, int id, int[] neighbours) {
+            super( context );
+            postId = id;
+            neighbourIds = ( neighbours == null ) ? new int[0] : neighbours;
+        }
+
+        /* Runs on a worker thread */
+        @Override public GetItemsService.PostDetail loadInBackground() {
+            GetItemsService.GetPostBinder binder = postBinder;
+            if ( binder == null ) return null;
+
+            GetItemsService.PostDetail post = binder.getPost( postId );
+
+            if ( neighbourIds.length > 0 ) {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute( new Runnable() {
+                    @Override public void run() {
+                        for ( int each : neighbourIds ) {
+                            // the service may be unbound at any point, so check before each body.
+                            GetItemsService.GetPostBinder current = postBinder;
+                            if ( current == null ) return;
+
+                            current.prefetchBody( each );
+                        }
+                    }
+                } );
+            }
+            return post;
+        }
+
+        /* Runs on the UI thread */
+        @Override public void deliverResult(GetItemsService.PostDetail post) {
+            if ( isReset() ) return;
+
+            detail = post;
+            if ( isStarted() ) super.deliverResult( post );
+        }
 
-    public static class PostAdapter extends CursorAdapter {
+        @Override protected void onStartLoading() {
+            if ( detail != null ) deliverResult( detail );
+            if ( takeContentChanged() || detail == null ) forceLoad();
+        }
+
+        @Override protected void onStopLoading() { cancelLoad(); }
+
+        @Override protected void onReset() {
+            super.onReset();
+            onStopLoading();
+            detail = null;
+        }
+    }
+
+    /** The pages fetched by a MyCursorLoader, presented to the list as a single Cursor. */
+    static final class PagedCursor extends MergeCursor {
+
+        private final Cursor[] pages;
+        /** the _id of the last row in the last page - where the next page starts from. */
+        final int lastId;
+        /** true once a page has come back short, i.e. there are no more rows to fetch. */
+        final boolean complete;
+
+        PagedCursor(Cursor[] cursors, int last, boolean noMore) {
+            super( cursors );
+            pages = cursors;
+            lastId = last;
+            complete = noMore;
+        }
+
+        /** true if this cursor was made by appending a page to the other's pages. */
+        boolean continues(PagedCursor other) {
+            return pages.length > other.pages.length && pages[ 0 ] == other.pages[ 0 ];
+        }
+
+        void closeNewestPage() { pages[ pages.length - 1 ].close(); }
+    }
+//----------------------------------------------------------------------------------------------
+
+    /** <p>
+     *  The listView's adapter, binding each row's decrypted title from the loaders' cursors.
+     *  </p><p>
+     *  As the database stores the titles in an encrypted format, the adapter uses a callback on
+     *  the binder interface to decrypt them (from the service's cache, if they are there).
+     *  </p><p>
+     *  Each row's view holder remembers the post id and ciphertext it was bound with, so a row
+     *  that is asked to bind the same post again is left as it is.  When a new cursor holds the
+     *  same number of rows as the old one (as after a sync that changed only a few posts),
+     *  swapCursor() rebinds just the visible rows that differ, without the list being relaid out.
+     *  Otherwise the list is notified, but still only the rows that differ are rebound.
+     *  </p> */
+    public static class PostAdapter extends BaseAdapter {
 
         private final LayoutInflater mInflater;
+        // looked up once, rather than for every row bound.
+        private final int mainBackground;
+        private final int alternateBackground;
+        private Cursor mCursor;
+
+        /** what each row's view is showing, so that unchanged rows can be skipped. */
+        private static final class RowHolder {
+            final TextView title;
+            int postId = -1;
+            String scrambled;
+            boolean alternate;
 
-        public PostAdapter() { this( null ); }
+            RowHolder(TextView view) { title = view; }
+        }
 
-        public PostAdapter(Cursor c) {
-            super( parentActivity, c, 0 );
+        public PostAdapter() {
             mInflater = parentActivity.getLayoutInflater();
+            mainBackground = parentActivity.getResources().getColor( R.color.main_grey );
+            alternateBackground = parentActivity.getResources().getColor( R.color.alternate_grey );
         }
 
-        @Override public View newView(Context unused, Cursor cursor, ViewGroup parent) {
-            return mInflater.inflate( android.R.layout.simple_list_item_activated_1, parent, false );
+        Cursor getCursor() { return mCursor; }
+
+        /** <p>
+         *  replaces the adapter's cursor (the old one is not closed - that is left to its loader).
+         *  </p><p>
+         *  The list may be null if it has no views at the moment, in which case it is just notified.
+         *  </p> */
+        void swapCursor(Cursor cursor, ListView list) {
+            Cursor old = mCursor;
+            mCursor = cursor;
+
+            if ( cursor == null ) {
+                notifyDataSetInvalidated();
+                return;
+            }
+            if ( list == null || old == null || old.isClosed() ) {
+                notifyDataSetChanged();
+                return;
+            }
+            if ( old.getCount() != cursor.getCount() || !checkedRowKept( old, cursor, list ) ) {
+                // rows have come or gone, which the list must lay out again for.  It hands each
+                // visible position back the view it had, and getView() compares the post id and
+                // ciphertext that view shows with the new row - so only the positions whose post
+                // has changed are bound again.  (The stable ids move the checked row with its post.)
+                notifyDataSetChanged();
+                return;
+            }
+            // the rows are where they were, so only the visible positions whose post (or its title)
+            // has changed are bound again.  The rows off-screen are read from the new cursor as they
+            // scroll into view.
+            int first = list.getFirstVisiblePosition();
+            for ( int i = 0; i < list.getChildCount() && first + i < cursor.getCount(); i++ ) {
+                if ( rowChanged( old, cursor, first + i ) ) getView( first + i, list.getChildAt( i ), list );
+            }
         }
 
-        @Override public void bindView(View view, Context context, Cursor cursor) {
-            // this if/else block is responsible for the alternating backgrounds on items in the
-            // scrolling listView.
-            if ( cursor.getPosition() % 2 == 1 )
-                view.setBackgroundColor( context.getResources()
-                                                .getColor( R.color.alternate_grey ) );
-            else
-                view.setBackgroundColor( context.getResources()
-                                                .getColor( R.color.main_grey ) );
-
-            // background set, now we add the text.
-            ( (TextView)view ).setText( getTitle( cursor ) );
-        }
-        private String getTitle(Cursor cursor) {
-            return postBinder.unencrypt(
-                    cursor.getString(
-                            GetItemsService.COLUMN_TITLE_INDEX ) );
-        }
-        // the next three methods populate the detail views when setting up the detailFragments.
-        public int getUserAt(Cursor cursor, int post) {
-            cursor.moveToPosition( post );
-            return cursor.getInt( GetItemsService.COLUMN_USER_ID_INDEX );
-        }
-        public String getTitleAt(Cursor cursor, int post) {
-            cursor.moveToPosition( post );
-            return getTitle( cursor );
-        }
-        public String getBodyAt(Cursor cursor, int post) {
-            cursor.moveToPosition( post );
-            return postBinder.unencrypt(
-                            cursor.getString(
-                                    GetItemsService.COLUMN_BODY_INDEX ) );
+        // compares the post at one position in the two cursors, by id and then by ciphertext.
+        private static boolean rowChanged(Cursor old, Cursor cursor, int position) {
+            if ( !old.moveToPosition( position ) || !cursor.moveToPosition( position ) ) return true;
+
+            return old.getInt( GetItemsService.COLUMN_POST_ID_INDEX )
+                                    != cursor.getInt( GetItemsService.COLUMN_POST_ID_INDEX )
+                    || !TextUtils.equals( old.getString( GetItemsService.COLUMN_TITLE_INDEX )
+                                        , cursor.getString( GetItemsService.COLUMN_TITLE_INDEX ) );
+        }
+
+        // with the rows left in place, the activated row must still be the same post.
+        private static boolean checkedRowKept(Cursor old, Cursor cursor, ListView list) {
+            int checked = list.getCheckedItemPosition();
+            if ( checked == ListView.INVALID_POSITION ) return true;
+
+            return old.moveToPosition( checked ) && cursor.moveToPosition( checked )
+                    && old.getInt( GetItemsService.COLUMN_POST_ID_INDEX )
+                                        == cursor.getInt( GetItemsService.COLUMN_POST_ID_INDEX );
+        }
+
+        @Override public int getCount() {
+            return ( mCursor == null || mCursor.isClosed() ) ? 0 : mCursor.getCount();
+        }
+
+        @Override public Object getItem(int position) {
+            return ( mCursor != null && mCursor.moveToPosition( position ) ) ? mCursor : null;
+        }
+
+        /** the row's post id - which never changes for a post, so ids are stable. */
+        @Override public long getItemId(int position) {
+            return ( mCursor != null && mCursor.moveToPosition( position ) )
+                        ? mCursor.getInt( GetItemsService.COLUMN_POST_ID_INDEX ) : 0;
+        }
+
+        @Override public boolean hasStableIds() { return true; }
+
+        @Override public View getView(int position, View convertView, ViewGroup parent) {
+            View view = convertView;
+            RowHolder holder;
+
+            if ( view == null ) {
+                view = mInflater.inflate( android.R.layout.simple_list_item_activated_1, parent, false );
+                holder = new RowHolder( (TextView) view );
+                view.setTag( holder );
+            }
+            else holder = (RowHolder) view.getTag();
+
+            if ( mCursor == null || !mCursor.moveToPosition( position ) ) return view;
+
+            // the alternating backgrounds on items in the scrolling listView.
+            boolean alternate = position % 2 == 1;
+            if ( holder.postId < 0 || holder.alternate != alternate ) {
+                view.setBackgroundColor( alternate ? alternateBackground : mainBackground );
+                holder.alternate = alternate;
+            }
+            int postId = mCursor.getInt( GetItemsService.COLUMN_POST_ID_INDEX );
+            String scrambled = mCursor.getString( GetItemsService.COLUMN_TITLE_INDEX );
+
+            if ( postId != holder.postId || !TextUtils.equals( scrambled, holder.scrambled ) ) {
+                // a post may have no title at all.
+                String title = ( scrambled == null ) ? "" : postBinder.getTitle( postId, scrambled );
+                holder.title.setText( title );
+                // a title that failed to decrypt is tried again next time.
+                holder.postId = title.isEmpty() ? -1 : postId;
+                holder.scrambled = scrambled;
+            }
+            return view;
+        }
+        /** decrypts titles into the service's cache, ahead of their rows being bound. (Called from
+         *  a background thread by TitlePrefetcher.) */
+        void warmTitles(int[] ids, String[] scrambled) {
+            for ( int i = 0; i < ids.length; i++ ) {
+                // the service may be unbound at any point, so check before each title.
+                GetItemsService.GetPostBinder binder = postBinder;
+                if ( binder == null || Thread.currentThread().isInterrupted() ) return;
+
+                binder.prefetchTitle( ids[ i ], scrambled[ i ] );
+            }
+        }
+        /** the position of the row holding the given post, or ListView.INVALID_POSITION if it is
+         *  not among the rows loaded. */
+        int positionOf(int postId) {
+            for ( int i = 0; i < getCount(); i++ )
+                if ( getItemId( i ) == postId ) return i;
+
+            return ListView.INVALID_POSITION;
+        }
+        /** the post ids of the rows either side of the given position (as many as there are), for
+         *  the detailFragment to decrypt ahead of time. */
+        int[] getPostIdsAround(int position) {
+            int before = position - 1;
+            int after = position + 1;
+            boolean hasBefore = before >= 0;
+            boolean hasAfter = after < getCount();
+
+            int[] ids = new int[ ( hasBefore ? 1 : 0 ) + ( hasAfter ? 1 : 0 ) ];
+            int i = 0;
+            // the row after goes first, as the likelier to be opened next.
+            if ( hasAfter ) ids[ i++ ] = (int) getItemId( after );
+            if ( hasBefore ) ids[ i ] = (int) getItemId( before );
+            return ids;
         }
     }
 }
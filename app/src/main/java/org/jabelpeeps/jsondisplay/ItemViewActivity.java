@@ -8,14 +8,17 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.SearchView;
 import android.support.v7.widget.Toolbar;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.ListView;
 import android.widget.TextView;
 
 /**
@@ -48,6 +51,8 @@ public class ItemViewActivity extends AppCompatActivity
     private boolean inTwoPaneMode = false;
     /** Whether a detail view is being displayed */
     private boolean inDetailView = false;
+    /** The post id of a detail view to be recreated, once the list has its data again. */
+    private long pendingDetail = ListView.INVALID_ROW_ID;
 
     @Override protected void onCreate(Bundle savedInstanceState) {
         super.onCreate( savedInstanceState );
@@ -94,30 +99,14 @@ public class ItemViewActivity extends AppCompatActivity
 
         // add a detailFragment (if needed) to appropriate container.
         if ( detailFragment != null ) {
-            new Thread( waitForBinding ).start();
+            // as the old detail fragment may have been placed in the wrong container for this
+            // configuration, we'll just get it's post id, and simulate a user click on the post's
+            // row to produce a new detailFragment - as soon as the list has its data again.
+            pendingDetail = detailFragment.getPostId();
+            fragManager.beginTransaction().remove( detailFragment ).commit();
+            fragManager.executePendingTransactions();
         }
     }
-    private final Runnable waitForBinding = new Runnable() {
-        @Override public void run() {
-            while ( !loaderFragment.isBound() ) {
-                try {
-                    Thread.sleep( 100 );
-
-                } catch ( InterruptedException e ) { e.printStackTrace(); }
-            }
-            runOnUiThread( new Runnable() {
-                @Override public void run() {
-                    // as the old detail fragment may have been placed in the wrong container for
-                    // this configuration, we'll just get it's item position, and simulate a user
-                    // click on the list to produce a new detailFragment.
-                    int detail = detailFragment.getPos();
-                    fragManager.beginTransaction().remove( detailFragment ).commit();
-                    fragManager.executePendingTransactions();
-                    listFragment.onListItemClick( null, null, detail, 0 );
-                }
-            });
-        }
-    };
 
     /** <p>
      * Creates a ListFragment if needed, displaying it.
@@ -178,21 +167,19 @@ public class ItemViewActivity extends AppCompatActivity
     /** Callback from ListFragmentCallbacks indicating the item with the given ID was selected. */
     @Override public void onItemDetailRequested(int id) {
 
-        // first we need a reference to the adapter, which we use to get the body text for the item.
-        // (the getBodyAt() method calls the un-encrypt method on the GetItemService.)
+        // the detailFragment is given just the ids it needs - it decrypts the post for itself, in
+        // the background, and the posts either side of it too.
         ItemLoaderFragment.PostAdapter adapter = (ItemLoaderFragment.PostAdapter) listFragment.getListAdapter();
-        String body = adapter.getBodyAt( adapter.getCursor(), id );
-        // and now the sme for the title.
-        String title = adapter.getTitleAt( adapter.getCursor(), id );
-        // and finally the user ID.
-        int user = adapter.getUserAt( adapter.getCursor(), id );
+        // a position outside the loaded rows has no post behind it (getItemId() would give 0).
+        if ( adapter == null || id < 0 || id >= adapter.getCount() ) return;
+
+        showDetail( (int) adapter.getItemId( id ), adapter.getPostIdsAround( id ) );
+    }
 
-        // setup a detailFragment, adding the required Strings for display to the args Bundle.
+    private void showDetail(int postId, int[] neighbourIds) {
         Bundle arguments = new Bundle();
-        arguments.putInt( ItemDetailFragment.ARG_POS, id );
-        arguments.putString( ItemDetailFragment.ARG_USER, ( "Post by userID:- " + user ).intern() );
-        arguments.putString( ItemDetailFragment.ARG_TITLE, title );
-        arguments.putString( ItemDetailFragment.ARG_BODY, body );
+        arguments.putInt( ItemDetailFragment.ARG_POST_ID, postId );
+        arguments.putIntArray( ItemDetailFragment.ARG_NEIGHBOUR_IDS, neighbourIds );
 
         detailFragment = new ItemDetailFragment();
         detailFragment.setArguments( arguments );
@@ -201,22 +188,59 @@ public class ItemViewActivity extends AppCompatActivity
         displayDetailFragment();
     }
 
+    /** Callback from ListFragmentCallbacks, passed on so the loader can fetch the next page of posts. */
+    @Override public void onListEndApproached() { loaderFragment.loadMorePosts(); }
+
     /** Callback from ListFragmentCallbacks indicating the item indicating the number of panes. */
     @Override public boolean isInTwoPanes() { return inTwoPaneMode; }
 
     @Override public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate( R.menu.menu_item_view, menu );
         hideSpinnerForDetailView( !inTwoPaneMode && inDetailView );
+        setupSearchView( menu.findItem( R.id.action_search ) );
         return super.onCreateOptionsMenu( menu );
     }
 
+    // searches are run when submitted, and ended when the search view is closed.
+    private void setupSearchView(MenuItem item) {
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView( item );
+
+        // a search that survived a configuration change is shown again.
+        String current = loaderFragment.getSearchQuery();
+        if ( current != null ) {
+            MenuItemCompat.expandActionView( item );
+            searchView.setQuery( current, false );
+        }
+        searchView.setOnQueryTextListener( new SearchView.OnQueryTextListener() {
+            @Override public boolean onQueryTextSubmit(String query) {
+                loaderFragment.search( query );
+                return false;
+            }
+            @Override public boolean onQueryTextChange(String newText) { return false; }
+        } );
+        MenuItemCompat.setOnActionExpandListener( item, new MenuItemCompat.OnActionExpandListener() {
+            @Override public boolean onMenuItemActionExpand(MenuItem menuItem) { return true; }
+
+            @Override public boolean onMenuItemActionCollapse(MenuItem menuItem) {
+                loaderFragment.search( null );
+                return true;
+            }
+        } );
+    }
+
     @Override public boolean onOptionsItemSelected(MenuItem item) {
         switch ( item.getItemId() ) {
 
             case R.id.action_refresh_posts:
-                // a call to startService initiates a new Http request.
+                // a call to startService initiates a new Http request (unless one is running, or
+                // has only just finished).
                 startService( new Intent( getApplication(), GetItemsService.class ) );
                 return true;
+            case R.id.action_force_refresh:
+                // ...and this one does, even if the posts have only just been refreshed.
+                startService( new Intent( getApplication(), GetItemsService.class )
+                                    .putExtra( GetItemsService.EXTRA_FORCE, true ) );
+                return true;
             case android.R.id.home:
                 // in this app, the home and back buttons do the same thing.
                 onBackPressed();
@@ -268,6 +292,19 @@ public class ItemViewActivity extends AppCompatActivity
     // listFragment, which also implements the interface.
     @Override public void swapCursorForThis(Cursor cursor) {
         listFragment.swapCursorForThis( cursor );
+
+        if ( cursor != null && pendingDetail != ListView.INVALID_ROW_ID ) {
+            int postId = (int) pendingDetail;
+            pendingDetail = ListView.INVALID_ROW_ID;
+            // the rows may have changed since, so the post's row is looked for afresh - and if it is
+            // not among those loaded, the post is shown without its neighbours.
+            ItemLoaderFragment.PostAdapter adapter = (ItemLoaderFragment.PostAdapter) listFragment.getListAdapter();
+            int position = ( adapter == null ) ? ListView.INVALID_POSITION : adapter.positionOf( postId );
+
+            if ( position != ListView.INVALID_POSITION )
+                listFragment.onListItemClick( null, null, position, postId );
+            else showDetail( postId, new int[0] );
+        }
     }
 //------------------------------------------------------------------------------------
     public static class ConfirmExitDialog extends DialogFragment {
@@ -2,8 +2,12 @@ package org.jabelpeeps.jsondisplay;
 
 import android.app.Dialog;
 import android.app.DialogFragment;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AlertDialog;
@@ -27,6 +31,8 @@ public class LoginActivity extends AppCompatActivity {
 
     private String pin = "000000";
     private boolean firstRun = false;
+    /** the key derivation in progress, if any - kept across configuration changes. */
+    private UnlockTask unlocking;
 
     @Override protected void onCreate(Bundle savedInstanceState) {
         super.onCreate( savedInstanceState );
@@ -40,6 +46,8 @@ public class LoginActivity extends AppCompatActivity {
         String prefsFile = getString( R.string.file_name_secure_prefs );
         if ( getSharedPreferences( prefsFile, 0 ).getAll().isEmpty() )
             firstRun = true;
+
+        unlocking = (UnlockTask) getLastCustomNonConfigurationInstance();
     }
 
     @Override protected void onStart() {
@@ -65,13 +73,19 @@ public class LoginActivity extends AppCompatActivity {
             checkPin.setText( R.string.action_set_pin );
         }
         checkPin.setOnClickListener( buttonListener );
+
+        // picks up the result of a derivation that finished while the activity was stopped.
+        showProgress( unlocking != null );
+        if ( unlocking != null ) unlocking.attach( this );
     }
     private final View.OnClickListener buttonListener = new View.OnClickListener(){
         @Override public void onClick(View v) {
+            if ( unlocking != null ) return;
+
             if ( firstRun )
                 checkValidityAndSetPin();
             else
-                attemptLogin();
+                unlock( false );
         }
     };
     private final NumberPicker.OnValueChangeListener pickerListener = new NumberPicker.OnValueChangeListener() {
@@ -88,6 +102,12 @@ public class LoginActivity extends AppCompatActivity {
 
         for ( NumberPicker each : pickers )
             each.setOnValueChangedListener( null );
+
+        if ( unlocking != null ) unlocking.attach( null );
+    }
+
+    @Override public Object onRetainCustomNonConfigurationInstance() {
+        return unlocking;
     }
 
     // checks inputted pin against various regex filters to exclude easy to guess values.
@@ -108,35 +128,49 @@ public class LoginActivity extends AppCompatActivity {
                                                R.string.error_reverse_digits )
                                  .show( getFragmentManager(), "error" );
 
-        else {
-            getprefs().edit().putString( "pin", pin ).apply();
-            login();
-        }
+        else unlock( true );
     }
 
-    private SecurePreferences getprefs() {
-        return new SecurePreferences( getApplication()
-                                    , pin
-                                    , getString( R.string.file_name_secure_prefs ) );
+    // starts deriving the key from the pin, which the UnlockTask then checks - or, on first use, sets.
+    private void unlock(boolean setPin) {
+        ServiceMetrics.markLogin();
+        showProgress( true );
+
+        unlocking = new UnlockTask( getApplication(), pin, getString( R.string.file_name_secure_prefs ), setPin );
+        unlocking.attach( this );
+        unlocking.execute();
     }
-    private void attemptLogin() {
-        if ( pin.equalsIgnoreCase( getprefs().getString( "pin", "" ) ) )
-            login();
+
+    // called by the UnlockTask with the opened store, or null if the pin was wrong.
+    private void unlocked(SharedPreferences store) {
+        unlocking = null;
+        showProgress( false );
+
+        if ( store != null )
+            login( store );
         else
             MessageDialogFragment.newInstance( R.string.error_pin_disallowed,
                                                R.string.error_incorrect_password )
                                  .show( getFragmentManager(), "error" );
     }
 
-    // passes the (by now) checked & valid pin to the data loading service, and clears the local
-    // fields, before initialising the next activity.
-    private void login() {
+    // the pin can't be changed (or the button pressed again) while its key is being derived.
+    private void showProgress(boolean deriving) {
+        findViewById( R.id.unlock_progress ).setVisibility( deriving ? View.VISIBLE : View.GONE );
+        findViewById( R.id.check_pin_button ).setEnabled( !deriving );
+
+        for ( NumberPicker each : pickers ) each.setEnabled( !deriving );
+    }
+
+    // hands the store (already opened with the checked pin) to the data loading service, and
+    // clears the local fields, before initialising the next activity.
+    private void login(SharedPreferences store) {
         Toast toast = Toast.makeText( this, R.string.prompt_loading, Toast.LENGTH_SHORT );
         toast.setGravity( Gravity.CENTER, 0, 0 );
         toast.show();
 
-        Intent service = new Intent( getApplication(), GetItemsService.class );
-        startService( service.putExtra( "pin", pin ) );
+        GetItemsService.unlockWith( store );
+        startService( new Intent( getApplication(), GetItemsService.class ) );
 
         // reset both pin field, and numberPickers to 0, so that pin is no longer displayed (or recorded).
         pin = "000000";
@@ -186,6 +220,57 @@ public class LoginActivity extends AppCompatActivity {
             pickers[ i ].setValue( Character.getNumericValue( tempPin[ i ] ) );
     }
 
+//---------------------------------------------------------------------------------------
+    /** <p>
+     *  Opens SecurePreferences with the pin - which derives its key, and is by far the slowest part
+     *  of logging in - on a background thread, then checks the pin against the one saved there (or
+     *  saves it, on first use).  Delivers the store, or null for a wrong pin, to whichever
+     *  LoginActivity is attached when it finishes.
+     *  </p><p>
+     *  attach() and the delivery are both on the main thread, so a result that arrives while no
+     *  activity is attached waits for the next one.
+     *  </p> */
+    private static final class UnlockTask extends AsyncTask<Void, Void, SharedPreferences> {
+        private final Context context;
+        private final String pin;
+        private final String prefsFile;
+        private final boolean setPin;
+
+        private LoginActivity activity;
+        private boolean done = false;
+        private SharedPreferences result;
+
+        UnlockTask(Context appContext, String checkedPin, String fileName, boolean firstUse) {
+            context = appContext;
+            pin = checkedPin;
+            prefsFile = fileName;
+            setPin = firstUse;
+        }
+
+        void attach(LoginActivity loginActivity) {
+            activity = loginActivity;
+            if ( done && activity != null ) activity.unlocked( result );
+        }
+
+        @Override protected SharedPreferences doInBackground(Void... params) {
+            long start = SystemClock.elapsedRealtime();
+            SharedPreferences store = new SecurePreferences( context, pin, prefsFile );
+            ServiceMetrics.recordKeyDerivation( SystemClock.elapsedRealtime() - start );
+
+            if ( setPin ) {
+                store.edit().putString( "pin", pin ).commit();
+                return store;
+            }
+            return pin.equalsIgnoreCase( store.getString( "pin", "" ) ) ? store : null;
+        }
+
+        @Override protected void onPostExecute(SharedPreferences store) {
+            done = true;
+            result = store;
+            if ( activity != null ) activity.unlocked( store );
+        }
+    }
+
 //---------------------------------------------------------------------------------------
     /** a simple cut-down fragment to display arbitrary messages to users. */
     public static class MessageDialogFragment extends DialogFragment {
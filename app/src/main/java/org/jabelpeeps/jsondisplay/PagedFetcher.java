@@ -0,0 +1,251 @@
+package org.jabelpeeps.jsondisplay;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Downloads a collection as a series of pages (using the _start and _limit parameters), with up
+ * to a set number of pages in flight at once, and hands each one over as soon as it has arrived
+ * - in whatever order that turns out to be.
+ * </p><p>
+ * A page that fails is retried on its own, a few times, before the fetch as a whole is given up
+ * - unless the page turns out to lie beyond the end of the collection.  The end is found from the
+ * X-Total-Count header if the server sends one, and otherwise from the first page that comes back
+ * short.
+ * </p><p>
+ * Each page's posts are counted before it is handed over, so that a page holding more than
+ * pageSize posts, or the same posts as another page, fails the fetch before any of it can be
+ * written.  Either shows that the server is ignoring the parameters (so the pages would never
+ * come back short).
+ * </p><p>
+ * The pages go through the shared client's cache like any other request, and a page that comes
+ * back unchanged is flagged as such, so that its rows need not be digested or written again.
+ * </p><p>
+ * The pages are read by a single thread.
+ * </p> */
+final class PagedFetcher implements IngestPipeline.Payload {
+
+    /** the number of attempts at each page before the fetch fails. */
+    static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 250;
+    private static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final OkHttpClient client;
+    private final String url;
+    private final int pageSize;
+    private final ExecutorService fetchers;
+    /** landed pages, waiting to be read - the fetchers wait when it is full. */
+    private final BlockingQueue<Page> landed;
+
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    /** the index of the first page beyond the end of the collection, once it is known. */
+    private volatile int endIndex = Integer.MAX_VALUE;
+    private final AtomicInteger retries = new AtomicInteger();
+
+    // only touched by the reading thread.
+    private final BitSet read = new BitSet();
+    /** the digests of the pages read that held any posts, for spotting a page served twice. */
+    private final Set<ByteBuffer> filledPages = new HashSet<ByteBuffer>();
+    /** the failures of pages that may yet turn out to lie beyond the end, keyed by page index. */
+    private final Map<Integer, IOException> failures = new HashMap<Integer, IOException>();
+    private boolean currentUnchanged;
+
+    private static final class Page {
+        final int index;
+        final byte[] body;
+        final boolean unchanged;
+        final IOException failure;
+
+        Page(int pageIndex, byte[] bytes, boolean cached, IOException e) {
+            index = pageIndex;
+            body = bytes;
+            unchanged = cached;
+            failure = e;
+        }
+    }
+
+    /** @param parallelism the most pages to be downloading at any one time. */
+    PagedFetcher(OkHttpClient httpClient, String collectionUrl, int size, int parallelism) {
+        if ( size < 1 || parallelism < 1 )
+            throw new IllegalArgumentException( "Page size and parallelism must be positive." );
+
+        client = httpClient;
+        url = collectionUrl;
+        pageSize = size;
+        landed = new ArrayBlockingQueue<Page>( parallelism * 2 );
+        fetchers = Executors.newFixedThreadPool( parallelism );
+
+        for ( int i = 0; i < parallelism; i++ ) {
+            fetchers.execute( new Runnable() {
+                @Override public void run() { fetchPages(); }
+            } );
+        }
+    }
+
+    // each fetcher takes the next page that nobody has started, until the end is known to be passed.
+    private void fetchPages() {
+        try {
+            for ( int index = nextIndex.getAndIncrement(); index < endIndex;
+                                                           index = nextIndex.getAndIncrement() ) {
+                landed.put( fetch( index ) );
+            }
+        } catch ( InterruptedException e ) {
+            // the fetch has been closed.
+        }
+    }
+
+    private Page fetch(int index) throws InterruptedException {
+        Request request = new Request.Builder()
+                                     .url( url + "?_start=" + ( index * pageSize ) + "&_limit=" + pageSize )
+                                     .build();
+        IOException failure = null;
+
+        for ( int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++ ) {
+            if ( attempt > 1 ) {
+                retries.incrementAndGet();
+                Thread.sleep( RETRY_DELAY_MS * ( attempt - 1 ) );
+            }
+            try {
+                Response response = client.newCall( request ).execute();
+                SharedHttpClient.record( response );
+                try {
+                    if ( !response.isSuccessful() ) {
+                        failure = new IOException( "Page " + index + " failed with code " + response.code() );
+                        continue;
+                    }
+                    String total = response.header( TOTAL_COUNT_HEADER );
+                    if ( total != null ) endAt( pagesFor( Integer.parseInt( total.trim() ) ) );
+
+                    return new Page( index, response.body().bytes(), SharedHttpClient.isUnchanged( response ), null );
+
+                } finally {
+                    response.body().close();
+                }
+            } catch ( IOException | RuntimeException e ) {
+                // anything thrown must still land as a failed page, or the reader waits for it forever.
+                failure = ( e instanceof IOException ) ? (IOException) e : new IOException( e );
+            }
+        }
+        return new Page( index, null, false, failure );
+    }
+
+    // the number of pages holding the given number of posts - there is always at least one.
+    private int pagesFor(int posts) {
+        return Math.max( 1, ( posts + pageSize - 1 ) / pageSize );
+    }
+
+    private synchronized void endAt(int index) {
+        if ( index < endIndex ) endIndex = index;
+    }
+
+    /** returns the next page to arrive, waiting for it if need be, or null once every page has
+     *  been read.  Throws the failure of any page within the collection that could not be fetched,
+     *  or that shows the server not to be paging it. */
+    @Override public InputStream next() throws IOException {
+        try {
+            for ( int first = read.nextClearBit( 0 ); first < endIndex; first = read.nextClearBit( 0 ) ) {
+                // every page before the first unread one has come back full, so that one is within
+                // the collection - if it failed, so does the fetch.
+                if ( failures.containsKey( first ) ) throw failures.get( first );
+
+                Page page = landed.take();
+
+                if ( page.index >= endIndex ) continue;   // a page beyond the end - nothing in it.
+                if ( page.failure != null ) {
+                    failures.put( page.index, page.failure );
+                    continue;
+                }
+                check( page );
+                currentUnchanged = page.unchanged;
+                return new ByteArrayInputStream( page.body );
+            }
+            return null;
+
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for a page." );
+        }
+    }
+
+    // counts the posts in the page, marking it as read - a short page marks the end.  Throws if
+    // the page shows that the server is not paging the collection.
+    private void check(Page page) throws IOException {
+        int posts = countPosts( page.body );
+
+        if ( posts > pageSize )
+            throw new IOException( "Page " + page.index + " held " + posts + " posts, for a page size of "
+                                   + pageSize + " - the server is ignoring _limit." );
+
+        // (empty pages past the end all look alike, so only those with posts are compared.)
+        if ( posts > 0 && !filledPages.add( ByteBuffer.wrap( sha256( page.body ) ) ) )
+            throw new IOException( "Page " + page.index + " repeated an earlier page"
+                                   + " - the server is ignoring _start." );
+
+        read.set( page.index );
+        if ( posts < pageSize ) endAt( page.index + 1 );
+    }
+
+    // the number of objects in the page's array.  Anything else in it is left for the ingest to
+    // reject.
+    private static int countPosts(byte[] body) throws IOException {
+        JsonParser json = JSON_FACTORY.createParser( body );
+        try {
+            int count = 0;
+            if ( json.nextToken() != JsonToken.START_ARRAY ) return 0;
+
+            while ( json.nextToken() == JsonToken.START_OBJECT ) {
+                json.skipChildren();
+                count++;
+            }
+            return count;
+
+        } finally {
+            json.close();
+        }
+    }
+
+    private static byte[] sha256(byte[] bytes) throws IOException {
+        try {
+            return MessageDigest.getInstance( "SHA-256" ).digest( bytes );
+
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IOException( e );
+        }
+    }
+
+    /** true if the page last returned by next() came from the cache, or was confirmed by the
+     *  server as unchanged. */
+    @Override public boolean unchanged() { return currentUnchanged; }
+
+    /** the number of page requests that were repeated after a failure. */
+    int getRetries() { return retries.get(); }
+
+    /** stops any pages still downloading. */
+    @Override public void close() {
+        fetchers.shutdownNow();
+    }
+}
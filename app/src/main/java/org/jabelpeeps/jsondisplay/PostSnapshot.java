@@ -0,0 +1,183 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A compact, column-wise copy of the list data (post ids, user ids and encrypted titles), so that
+ * the list can be filtered by user in memory rather than by another SQL query.
+ * </p><p>
+ * The ids are held in primitive arrays sorted by post id, and the titles are packed end to end in
+ * a single byte array (the ciphertext is all ASCII) addressed by an array of offsets.  Snapshots
+ * are immutable - merge() makes a new one - so they can be read from any thread.
+ * </p> */
+final class PostSnapshot {
+
+    private static final Charset ASCII = Charset.forName( "US-ASCII" );
+
+    static final PostSnapshot EMPTY = new Builder( 0 ).build();
+
+    private final int size;
+    private final int[] postIds;
+    private final int[] userIds;
+    /** title i occupies titles[ titleOffsets[ i ] ] up to titles[ titleOffsets[ i + 1 ] ]. */
+    private final int[] titleOffsets;
+    private final byte[] titles;
+
+    private PostSnapshot(int count, int[] posts, int[] users, int[] offsets, byte[] text) {
+        size = count;
+        postIds = posts;
+        userIds = users;
+        titleOffsets = offsets;
+        titles = text;
+    }
+
+    /** builds a snapshot from a cursor over (post id, user id, title), ordered by post id. */
+    static PostSnapshot fromCursor(Cursor cursor) {
+        Builder builder = new Builder( cursor.getCount() );
+
+        while ( cursor.moveToNext() ) {
+            String title = cursor.getString( GetItemsService.COLUMN_TITLE_INDEX );
+            builder.add( cursor.getInt( GetItemsService.COLUMN_POST_ID_INDEX )
+                       , cursor.getInt( GetItemsService.COLUMN_USER_ID_INDEX )
+                       , ( title == null ) ? new byte[0] : title.getBytes( ASCII ), 0
+                       , ( title == null ) ? 0 : title.length() );
+        }
+        return builder.build();
+    }
+
+    int size() { return size; }
+
+    /** returns a new snapshot with the deleted posts removed, and the changed posts added or replaced. */
+    PostSnapshot merge(PostSnapshot changed, int[] deletedIds) {
+        int[] deleted = deletedIds.clone();
+        Arrays.sort( deleted );
+        Builder builder = new Builder( size + changed.size );
+
+        // both snapshots are in post id order, so this is a single merging pass over each.
+        int i = 0, j = 0;
+        while ( i < size || j < changed.size ) {
+            if ( j == changed.size || ( i < size && postIds[ i ] < changed.postIds[ j ] ) ) {
+                if ( Arrays.binarySearch( deleted, postIds[ i ] ) < 0 ) builder.addFrom( this, i );
+                i++;
+            }
+            else {
+                // a changed post replaces the old copy with the same id.
+                if ( i < size && postIds[ i ] == changed.postIds[ j ] ) i++;
+                builder.addFrom( changed, j++ );
+            }
+        }
+        return builder.build();
+    }
+
+    /** a Cursor over the posts of the given user (or all posts for userId 0), with the same
+     *  columns as the list's SQL queries. Filtering is a single pass over the user id column. */
+    Cursor cursorFor(int userId) {
+        int[] rows;
+
+        if ( userId == 0 ) {
+            rows = new int[ size ];
+            for ( int i = 0; i < size; i++ ) rows[ i ] = i;
+        }
+        else {
+            int count = 0;
+            for ( int i = 0; i < size; i++ ) if ( userIds[ i ] == userId ) count++;
+
+            rows = new int[ count ];
+            for ( int i = 0, j = 0; i < size; i++ ) if ( userIds[ i ] == userId ) rows[ j++ ] = i;
+        }
+        return new SnapshotCursor( rows );
+    }
+
+    private String titleAt(int index) {
+        return new String( titles, titleOffsets[ index ]
+                                , titleOffsets[ index + 1 ] - titleOffsets[ index ], ASCII );
+    }
+
+    //------------------------------------------------------------------------------------------
+    private static final class Builder {
+        private int count = 0;
+        private int[] posts;
+        private int[] users;
+        private int[] offsets;
+        private byte[] text;
+
+        Builder(int capacity) {
+            capacity = Math.max( capacity, 16 );
+            posts = new int[ capacity ];
+            users = new int[ capacity ];
+            offsets = new int[ capacity + 1 ];
+            text = new byte[ capacity * 64 ];
+        }
+
+        void addFrom(PostSnapshot from, int index) {
+            int start = from.titleOffsets[ index ];
+            add( from.postIds[ index ], from.userIds[ index ]
+               , from.titles, start, from.titleOffsets[ index + 1 ] - start );
+        }
+
+        void add(int postId, int userId, byte[] title, int start, int length) {
+            if ( count == posts.length ) {
+                posts = Arrays.copyOf( posts, count * 2 );
+                users = Arrays.copyOf( users, count * 2 );
+                offsets = Arrays.copyOf( offsets, count * 2 + 1 );
+            }
+            int end = offsets[ count ] + length;
+            if ( end > text.length ) text = Arrays.copyOf( text, Math.max( end, text.length * 2 ) );
+
+            System.arraycopy( title, start, text, offsets[ count ], length );
+            posts[ count ] = postId;
+            users[ count ] = userId;
+            offsets[ ++count ] = end;
+        }
+
+        PostSnapshot build() {
+            return new PostSnapshot( count, posts, users, offsets, text );
+        }
+    }
+
+    //------------------------------------------------------------------------------------------
+    /** A read-only Cursor over a selection of the snapshot's rows. */
+    private final class SnapshotCursor extends AbstractCursor {
+
+        private final String[] columns = { "_id", GetItemsService.COLUMN_USER_ID, "title" };
+        private final int[] rows;
+
+        SnapshotCursor(int[] selected) { rows = selected; }
+
+        @Override public int getCount() { return rows.length; }
+
+        @Override public String[] getColumnNames() { return columns; }
+
+        @Override public int getInt(int column) {
+            int row = rows[ getPosition() ];
+            switch ( column ) {
+                case GetItemsService.COLUMN_POST_ID_INDEX:
+                    return postIds[ row ];
+                case GetItemsService.COLUMN_USER_ID_INDEX:
+                    return userIds[ row ];
+                default:
+                    throw new IllegalArgumentException( "Column " + column + " is not numeric." );
+            }
+        }
+
+        @Override public String getString(int column) {
+            if ( column == GetItemsService.COLUMN_TITLE_INDEX ) return titleAt( rows[ getPosition() ] );
+            return String.valueOf( getInt( column ) );
+        }
+
+        @Override public long getLong(int column) { return getInt( column ); }
+
+        @Override public short getShort(int column) { return (short) getInt( column ); }
+
+        @Override public float getFloat(int column) { return getInt( column ); }
+
+        @Override public double getDouble(int column) { return getInt( column ); }
+
+        @Override public boolean isNull(int column) { return false; }
+    }
+}
@@ -0,0 +1,87 @@
+package org.jabelpeeps.jsondisplay;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Decides whether a request to refresh the data should start a new download.  Only one refresh
+ * runs at a time - a request made while one is in flight is merged into it, as its result will
+ * reach every client anyway.  A request made within the minimum interval of the last successful
+ * refresh is throttled, unless it is forced - or the requester has no data yet, as the interval is
+ * only there to save repeating a download whose result is already held.
+ * </p><p>
+ * Safe to call from any thread.
+ * </p> */
+final class RefreshScheduler {
+
+    enum Outcome {
+        /** a new refresh has been started. */
+        SERVED,
+        /** a refresh was already running, and this request is answered by it. */
+        MERGED,
+        /** the data was refreshed too recently for another to be worthwhile. */
+        THROTTLED
+    }
+
+    private long minIntervalNanos;
+    private boolean inFlight = false;
+    /** when the last successful refresh finished, or 0 if none has. */
+    private long lastSuccess = 0;
+
+    private int served = 0;
+    private int merged = 0;
+    private int throttled = 0;
+    private Outcome lastOutcome;
+
+    RefreshScheduler(long minIntervalMillis) {
+        setMinInterval( minIntervalMillis );
+    }
+
+    /** asks to start a refresh - a forced request ignores the minimum interval, but is still merged
+     *  into any refresh already in flight.  haveData says whether the requester already holds the
+     *  data of an earlier refresh - if not, it is never throttled.  If the outcome is SERVED,
+     *  finished() must be called when the refresh is over. */
+    synchronized Outcome request(boolean force, boolean haveData) {
+        if ( inFlight ) {
+            merged++;
+            lastOutcome = Outcome.MERGED;
+        }
+        else if ( !force && haveData && lastSuccess != 0 && System.nanoTime() - lastSuccess < minIntervalNanos ) {
+            throttled++;
+            lastOutcome = Outcome.THROTTLED;
+        }
+        else {
+            inFlight = true;
+            served++;
+            lastOutcome = Outcome.SERVED;
+        }
+        return lastOutcome;
+    }
+
+    /** ends the refresh in flight - only a successful one starts the minimum interval, so that a
+     *  failure can be retried straight away. */
+    synchronized void finished(boolean succeeded) {
+        if ( !inFlight ) return;
+
+        inFlight = false;
+        if ( succeeded ) lastSuccess = System.nanoTime();
+    }
+
+    synchronized void setMinInterval(long millis) {
+        if ( millis < 0 ) throw new IllegalArgumentException( "Minimum refresh interval must not be negative." );
+        minIntervalNanos = TimeUnit.MILLISECONDS.toNanos( millis );
+    }
+
+    synchronized long getMinInterval() { return TimeUnit.NANOSECONDS.toMillis( minIntervalNanos ); }
+
+    synchronized boolean isInFlight() { return inFlight; }
+
+    /** the outcome of the most recent request, or null if there has been none. */
+    synchronized Outcome getLastOutcome() { return lastOutcome; }
+
+    synchronized int getServed() { return served; }
+
+    synchronized int getMerged() { return merged; }
+
+    synchronized int getThrottled() { return throttled; }
+}
@@ -0,0 +1,76 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A snapshot of the (post id, digest) pairs already in the db, taken before a differential sync,
+ * so that incoming posts can be compared against the stored ones without a query per post.
+ * </p><p>
+ * The snapshot is held as primitive arrays sorted by id - twelve bytes a row - and looked up with
+ * a binary search.  matches() only reads, so it is safe to call from the encryption workers;
+ * markSeen() and unseenIds() belong to the writing thread alone.
+ * </p> */
+final class RowDigests {
+
+    private final int[] ids;
+    private final long[] digests;
+    private final boolean[] seen;
+    private final boolean complete;
+
+    private RowDigests(int[] rowIds, long[] rowDigests, boolean allDigested) {
+        ids = rowIds;
+        digests = rowDigests;
+        seen = new boolean[ rowIds.length ];
+        complete = allDigested;
+    }
+
+    /** reads the digests of every row in the table. (Rows written before digests were kept read as 0.) */
+    static RowDigests load(SQLiteDatabase db, String table, String idColumn, String digestColumn) {
+        Cursor cursor = db.query( table, new String[] { idColumn, digestColumn }
+                                    , null, null, null, null, idColumn );
+        int[] rowIds = new int[ cursor.getCount() ];
+        long[] rowDigests = new long[ rowIds.length ];
+        boolean allDigested = true;
+
+        for ( int i = 0; cursor.moveToNext(); i++ ) {
+            rowIds[ i ] = cursor.getInt( 0 );
+            rowDigests[ i ] = cursor.getLong( 1 );
+            if ( cursor.isNull( 1 ) ) allDigested = false;
+        }
+        cursor.close();
+        return new RowDigests( rowIds, rowDigests, allDigested );
+    }
+
+    int size() { return ids.length; }
+
+    /** false if any row was without a digest - and so is waiting to be rewritten. */
+    boolean isComplete() { return complete; }
+
+    /** true if the db already holds the given post, with the same digest. */
+    boolean matches(int id, long digest) {
+        int index = Arrays.binarySearch( ids, id );
+        return index >= 0 && digests[ index ] == digest;
+    }
+
+    /** records that the given post is still present in the incoming data. */
+    void markSeen(int id) {
+        int index = Arrays.binarySearch( ids, id );
+        if ( index >= 0 ) seen[ index ] = true;
+    }
+
+    /** the ids of the rows in the snapshot that were never marked as seen - i.e. have disappeared. */
+    int[] unseenIds() {
+        int count = 0;
+        for ( boolean each : seen ) if ( !each ) count++;
+
+        int[] unseen = new int[ count ];
+        for ( int i = 0, j = 0; i < ids.length; i++ )
+            if ( !seen[ i ] ) unseen[ j++ ] = ids[ i ];
+
+        return unseen;
+    }
+}
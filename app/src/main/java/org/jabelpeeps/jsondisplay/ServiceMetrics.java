@@ -0,0 +1,179 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.os.SystemClock;
+
+import com.squareup.okhttp.Response;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Counters and timers for each stage of a refresh - the network, parsing, encryption and the db -
+ * and for logging in: the derivation of the SecurePreferences key from the pin, and the time from
+ * pressing the login button to the first paint of the list - so that a slow refresh or login in
+ * the field can be pinned on the stage responsible.
+ * </p><p>
+ * The figures are totals for the life of the process, kept in statics so that every part of the
+ * app can add to them.  snapshot() takes a consistent-enough copy for reporting; dump() prints one.
+ * </p> */
+final class ServiceMetrics {
+
+    private static final AtomicLong requests = new AtomicLong();
+    private static final AtomicLong requestMillis = new AtomicLong();
+    private static final AtomicLong bytesReceived = new AtomicLong();
+    private static final AtomicLong recordsParsed = new AtomicLong();
+    private static final AtomicLong encryptNanos = new AtomicLong();
+    private static final AtomicLong insertNanos = new AtomicLong();
+    private static final AtomicLong notModified = new AtomicLong();
+    private static final AtomicLong newData = new AtomicLong();
+    private static final AtomicLong keyDerivations = new AtomicLong();
+    private static final AtomicLong keyDerivationMillis = new AtomicLong();
+
+    // -1 until set.
+    private static volatile long loginAt = -1;
+    private static volatile long loginToFirstPaint = -1;
+
+    private ServiceMetrics() {}
+
+    /** adds the round trip of a response that came over the network, from the times OkHttp stamps
+     *  on it. */
+    static void recordRequest(Response response) {
+        Response network = response.networkResponse();
+        if ( network == null ) return;
+
+        String sent = network.header( "OkHttp-Sent-Millis" );
+        String received = network.header( "OkHttp-Received-Millis" );
+        if ( sent == null || received == null ) return;
+
+        try {
+            requestMillis.addAndGet( Long.parseLong( received ) - Long.parseLong( sent ) );
+            requests.incrementAndGet();
+        } catch ( NumberFormatException e ) { /* not worth counting */ }
+    }
+
+    /** counts a response that left the data as it was (a 304, or its equivalent from the cache). */
+    static void recordNotModified() { notModified.incrementAndGet(); }
+
+    /** counts a response that brought new data. */
+    static void recordNewData() { newData.incrementAndGet(); }
+
+    /** wraps a response stream, so that the bytes read from it are counted as received. */
+    static InputStream counting(InputStream stream) {
+        return new FilterInputStream( stream ) {
+            @Override public int read() throws IOException {
+                int read = super.read();
+                if ( read != -1 ) bytesReceived.incrementAndGet();
+                return read;
+            }
+            @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = super.read( buffer, offset, count );
+                if ( read > 0 ) bytesReceived.addAndGet( read );
+                return read;
+            }
+        };
+    }
+
+    static void recordParsed(long records) { recordsParsed.addAndGet( records ); }
+
+    static void recordEncrypt(long nanos) { encryptNanos.addAndGet( nanos ); }
+
+    static void recordInsert(long nanos) { insertNanos.addAndGet( nanos ); }
+
+    /** adds one derivation of the SecurePreferences key from a pin, which took the given ms. */
+    static void recordKeyDerivation(long millis) {
+        keyDerivationMillis.addAndGet( millis );
+        keyDerivations.incrementAndGet();
+    }
+
+    /** marks the moment the user pressed the login button, starting the clock for the first paint
+     *  of the list - so the time includes deriving the key. */
+    static void markLogin() {
+        loginAt = SystemClock.elapsedRealtime();
+        loginToFirstPaint = -1;
+    }
+
+    /** true from a login until the list is first painted with posts in it. */
+    static boolean awaitingListPaint() { return loginAt >= 0 && loginToFirstPaint < 0; }
+
+    /** marks a paint of the list with posts in it - only the first after each login counts. */
+    static void markListPainted() {
+        long login = loginAt;
+        if ( login < 0 || loginToFirstPaint >= 0 ) return;
+
+        loginToFirstPaint = SystemClock.elapsedRealtime() - login;
+    }
+
+    /** a copy of the figures at one moment. */
+    static final class Snapshot {
+        final long requests;
+        final long requestMillis;
+        final long bytesReceived;
+        final long recordsParsed;
+        final long encryptMillis;
+        final long insertMillis;
+        final long notModified;
+        final long newData;
+        final long keyDerivations;
+        final long keyDerivationMillis;
+        /** -1 if the list has not yet been painted since the last login. */
+        final long loginToFirstPaintMillis;
+
+        private Snapshot() {
+            requests = ServiceMetrics.requests.get();
+            requestMillis = ServiceMetrics.requestMillis.get();
+            bytesReceived = ServiceMetrics.bytesReceived.get();
+            recordsParsed = ServiceMetrics.recordsParsed.get();
+            encryptMillis = TimeUnit.NANOSECONDS.toMillis( encryptNanos.get() );
+            insertMillis = TimeUnit.NANOSECONDS.toMillis( insertNanos.get() );
+            notModified = ServiceMetrics.notModified.get();
+            newData = ServiceMetrics.newData.get();
+            keyDerivations = ServiceMetrics.keyDerivations.get();
+            keyDerivationMillis = ServiceMetrics.keyDerivationMillis.get();
+            loginToFirstPaintMillis = loginToFirstPaint;
+        }
+
+        /** the mean round trip of the network requests, in ms. */
+        long meanRequestMillis() { return ( requests == 0 ) ? 0 : requestMillis / requests; }
+
+        /** the mean time taken to derive the SecurePreferences key, in ms. */
+        long meanKeyDerivationMillis() {
+            return ( keyDerivations == 0 ) ? 0 : keyDerivationMillis / keyDerivations;
+        }
+
+        @Override public String toString() {
+            return "requests=" + requests
+                    + " meanRequestMs=" + meanRequestMillis()
+                    + " bytesReceived=" + bytesReceived
+                    + " recordsParsed=" + recordsParsed
+                    + " encryptMs=" + encryptMillis
+                    + " insertMs=" + insertMillis
+                    + " notModified=" + notModified
+                    + " newData=" + newData
+                    + " keyDerivations=" + keyDerivations
+                    + " meanKeyDerivationMs=" + meanKeyDerivationMillis()
+                    + " loginToFirstPaintMs=" + loginToFirstPaintMillis;
+        }
+    }
+
+    static Snapshot snapshot() { return new Snapshot(); }
+
+    /** prints a snapshot, one figure per line. */
+    static void dump(PrintWriter writer) {
+        Snapshot now = snapshot();
+        writer.println( "Refresh metrics (totals since the process started):" );
+        writer.println( "  network requests:      " + now.requests + " (mean " + now.meanRequestMillis() + " ms)" );
+        writer.println( "  bytes received:        " + now.bytesReceived );
+        writer.println( "  records parsed:        " + now.recordsParsed );
+        writer.println( "  encrypt time:          " + now.encryptMillis + " ms (summed over threads)" );
+        writer.println( "  insert time:           " + now.insertMillis + " ms" );
+        writer.println( "  not modified (304):    " + now.notModified );
+        writer.println( "  new data (200):        " + now.newData );
+        writer.println( "  key derivations:       " + now.keyDerivations + " (mean " + now.meanKeyDerivationMillis() + " ms)" );
+        writer.println( "  login to first paint:  " + now.loginToFirstPaintMillis + " ms" );
+    }
+}
@@ -0,0 +1,197 @@
+package org.jabelpeeps.jsondisplay;
+
+import com.tozny.crypto.android.AesCbcWithIntegrity.SecretKeys;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static com.tozny.crypto.android.AesCbcWithIntegrity.generateKey;
+import static com.tozny.crypto.android.AesCbcWithIntegrity.keyString;
+import static com.tozny.crypto.android.AesCbcWithIntegrity.keys;
+
+/**
+ * <p>
+ * Holds the decoded data key for the lifetime of one unlocked service session, so that encrypting
+ * or decrypting a field costs only the cipher work, rather than a read from SecurePreferences and
+ * a re-parse of the key string every time.
+ * </p><p>
+ * The key only ever exists here in memory; the persistent copy stays in SecurePreferences.
+ * </p><p>
+ * Values are encrypted by CbcHmacEngine unless setGcm() selects GcmEngine, and each value is
+ * decrypted by whichever engine wrote it - so the engine can be changed without rewriting the db.
+ * </p> */
+final class SessionCrypto {
+
+    private static final String DIGEST_ALGORITHM = "HmacSHA256";
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+    /** AES-128, as for the CBC key. */
+    private static final int GCM_KEY_LENGTH = 16;
+
+    // Mac instances are not thread-safe, but are costly enough to look up that each thread keeps one.
+    private static final ThreadLocal<Mac> MACS = new ThreadLocal<Mac>() {
+        @Override protected Mac initialValue() {
+            try {
+                return Mac.getInstance( DIGEST_ALGORITHM );
+
+            } catch ( NoSuchAlgorithmException e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+    };
+
+    private volatile SecretKeys keys;
+    /** a key derived from the data key, used only for the row digests. */
+    private volatile SecretKey digestKey;
+    /** a key derived from the data key, used only for the BlindIndex tokens. */
+    private volatile SecretKey searchKey;
+
+    private volatile CryptoEngine cbc;
+    // null where the device has no AES-GCM.
+    private volatile CryptoEngine gcm;
+    private volatile boolean gcmWrites = false;
+
+    boolean isUnlocked() { return keys != null; }
+
+    /** decodes the key string saved in SecurePreferences, and holds it until wipe() is called. */
+    void unlock(String keyString) throws GeneralSecurityException {
+        hold( keys( keyString ) );
+    }
+
+    /** generates and holds a new random key, returning it as a String to be saved for later sessions. */
+    String newKey() throws GeneralSecurityException {
+        SecretKeys fresh = generateKey();
+        hold( fresh );
+        return keyString( fresh );
+    }
+
+    private void hold(SecretKeys fresh) throws GeneralSecurityException {
+        // the digest key is derived from (rather than being) the integrity key, so that one key is
+        // never used for two purposes.
+        Mac mac = MACS.get();
+        mac.init( fresh.getIntegrityKey() );
+        digestKey = new SecretKeySpec( mac.doFinal( "row-digest".getBytes( UTF_8 ) ), DIGEST_ALGORITHM );
+        searchKey = new SecretKeySpec( mac.doFinal( "search-token".getBytes( UTF_8 ) ), DIGEST_ALGORITHM );
+
+        // GCM has a key of its own too, so that no key is shared between two modes of AES.
+        if ( GcmEngine.isAvailable() ) {
+            byte[] gcmKey = Arrays.copyOf( mac.doFinal( "aes-gcm".getBytes( UTF_8 ) ), GCM_KEY_LENGTH );
+            gcm = new GcmEngine( new SecretKeySpec( gcmKey, "AES" ) );
+            Arrays.fill( gcmKey, (byte) 0 );
+        }
+        cbc = new CbcHmacEngine( fresh );
+        keys = fresh;
+    }
+
+    /** selects the engine that new values are encrypted with - AES-GCM if true (and the device
+     *  has it), otherwise CBC and HMAC.  Returns whether GCM is now in use. */
+    boolean setGcm(boolean useGcm) {
+        gcmWrites = useGcm && GcmEngine.isAvailable();
+        return gcmWrites;
+    }
+
+    /** <p>
+     *  A keyed 64-bit digest of a row's plaintext, for spotting rows that have changed between
+     *  downloads without having to decrypt the stored copies.  Each column's value is taken, in
+     *  column order, from numbers or texts according to its type.
+     *  </p><p>
+     *  Being keyed, the digests reveal nothing about the plaintext to anyone without the data key,
+     *  and are only comparable between downloads that use the same key.
+     *  </p> */
+    long digest(TableMapping.Column[] columns, long[] numbers, String[] texts)
+                                                            throws GeneralSecurityException {
+        SecretKey key = digestKey;
+        if ( key == null )
+            throw new IllegalStateException( "Attempt to use SessionCrypto while it is locked." );
+
+        Mac mac = MACS.get();
+        mac.init( key );
+        for ( int i = 0; i < columns.length; i++ ) {
+            // (numbers are digested as ints, as the ids always have been.)
+            if ( columns[ i ].text ) updateText( mac, texts[ i ] );
+            else updateInt( mac, (int) numbers[ i ] );
+        }
+        return toLong( mac.doFinal() );
+    }
+
+    /** a keyed 64-bit token for one normalised word, for the BlindIndex. */
+    long searchToken(String word) throws GeneralSecurityException {
+        SecretKey key = searchKey;
+        if ( key == null )
+            throw new IllegalStateException( "Attempt to use SessionCrypto while it is locked." );
+
+        Mac mac = MACS.get();
+        mac.init( key );
+        return toLong( mac.doFinal( word.getBytes( UTF_8 ) ) );
+    }
+
+    // the first 8 bytes of a hash, as a long.
+    private static long toLong(byte[] hash) {
+        long value = 0;
+        for ( int i = 0; i < 8; i++ ) value = ( value << 8 ) | ( hash[ i ] & 0xff );
+        return value;
+    }
+
+    private static void updateInt(Mac mac, int value) {
+        mac.update( (byte) ( value >>> 24 ) );
+        mac.update( (byte) ( value >>> 16 ) );
+        mac.update( (byte) ( value >>> 8 ) );
+        mac.update( (byte) value );
+    }
+
+    // each String is preceded by its length (or -1 for null), so that no two rows hash alike.
+    private static void updateText(Mac mac, String text) {
+        if ( text == null ) {
+            updateInt( mac, -1 );
+            return;
+        }
+        byte[] bytes = text.getBytes( UTF_8 );
+        updateInt( mac, bytes.length );
+        mac.update( bytes );
+    }
+
+    String encrypt(String plain) throws GeneralSecurityException, UnsupportedEncodingException {
+        return engine( gcmWrites ).encrypt( plain );
+    }
+
+    String decrypt(String scrambled) throws GeneralSecurityException, UnsupportedEncodingException {
+        return engine( GcmEngine.wrote( scrambled ) ).decrypt( scrambled );
+    }
+
+    /** encrypts to the binary form kept in a BlobStore. */
+    byte[] seal(String plain) throws GeneralSecurityException {
+        return engine( gcmWrites ).seal( plain );
+    }
+
+    /** decrypts a value from seal(), which may be (part of) a mapped file - it is not copied out first. */
+    String open(ByteBuffer sealed) throws GeneralSecurityException {
+        if ( !sealed.hasRemaining() ) throw new GeneralSecurityException( "Empty sealed value." );
+
+        return engine( sealed.get( sealed.position() ) == GcmEngine.FORMAT ).open( sealed );
+    }
+
+    /** drops the key. (NB SecretKeySpec cannot be zeroed, so this releases our only reference to it.) */
+    void wipe() {
+        keys = null;
+        cbc = null;
+        gcm = null;
+        digestKey = null;
+        searchKey = null;
+    }
+
+    private CryptoEngine engine(boolean forGcm) throws GeneralSecurityException {
+        CryptoEngine engine = forGcm ? gcm : cbc;
+        if ( engine != null ) return engine;
+
+        if ( !isUnlocked() )
+            throw new IllegalStateException( "Attempt to use SessionCrypto while it is locked." );
+        throw new GeneralSecurityException( "AES-GCM is not available on this device." );
+    }
+}
@@ -0,0 +1,103 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.content.Context;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * The one OkHttpClient for the whole app, so that its connection pool (and the keep-alive
+ * connections in it) outlives each GetItemsService instance.
+ * </p><p>
+ * The client has a size-bounded disk cache, which stores the validators (ETag / Last-Modified)
+ * sent with each response and revalidates with them on the next request - so a response that
+ * comes back from the cache, or is confirmed by the server as unchanged, carries the same data
+ * as the last download.  record() keeps a count of each kind of outcome.
+ * </p> */
+final class SharedHttpClient {
+
+    private static final String CACHE_DIR = "http";
+    private static final long CACHE_SIZE = 4 * 1024 * 1024;
+
+    private static OkHttpClient client;
+
+    // the outcomes of the responses passed to record().
+    private static final AtomicInteger cacheHits = new AtomicInteger();
+    private static final AtomicInteger revalidations = new AtomicInteger();
+    private static final AtomicInteger downloads = new AtomicInteger();
+    private static final AtomicLong bytesSaved = new AtomicLong();
+
+    private SharedHttpClient() {}
+
+    /** returns the app's client, creating it (and its cache) on first use. */
+    static synchronized OkHttpClient get(Context context) {
+        if ( client == null ) {
+            client = new OkHttpClient();
+            client.setCache( new Cache( new File( context.getApplicationContext().getCacheDir(), CACHE_DIR )
+                                      , CACHE_SIZE ) );
+        }
+        return client;
+    }
+
+    /** drops every cached response - for when the data taken from one did not make it into the db,
+     *  so that the next request downloads it again rather than finding it unchanged. */
+    static synchronized void evict() {
+        if ( client == null ) return;
+        try {
+            client.getCache().evictAll();
+
+        } catch ( IOException e ) { e.printStackTrace(); }
+    }
+
+    /** true if the response's body is the one already held in the cache - i.e. the data has not
+     *  changed since it was last downloaded. */
+    static boolean isUnchanged(Response response) {
+        Response network = response.networkResponse();
+        return response.cacheResponse() != null
+                    && ( network == null || network.code() == 304 );
+    }
+
+    /** counts the response as a cache hit, a revalidation or a download; for the first two, the
+     *  body that did not need to be sent is counted as saved.  Also passes its timing and outcome
+     *  to ServiceMetrics. */
+    static void record(Response response) {
+        ServiceMetrics.recordRequest( response );
+        if ( response.code() == 304 || isUnchanged( response ) ) ServiceMetrics.recordNotModified();
+        else if ( response.isSuccessful() ) ServiceMetrics.recordNewData();
+
+        Response network = response.networkResponse();
+
+        if ( response.cacheResponse() == null ) {
+            downloads.incrementAndGet();
+            return;
+        }
+        if ( network == null ) cacheHits.incrementAndGet();
+        else if ( network.code() == 304 ) revalidations.incrementAndGet();
+        else {
+            // a conditional request that came back with new data.
+            downloads.incrementAndGet();
+            return;
+        }
+        long length = response.body().contentLength();
+        if ( length > 0 ) bytesSaved.addAndGet( length );
+    }
+
+    /** responses served from the cache without a request to the server. */
+    static int getCacheHits() { return cacheHits.get(); }
+
+    /** responses that the server confirmed (with a 304) were still current. */
+    static int getRevalidations() { return revalidations.get(); }
+
+    /** responses whose body was downloaded. */
+    static int getDownloads() { return downloads.get(); }
+
+    /** the total size of the bodies that cache hits and revalidations did not have to download. */
+    static long getBytesSaved() { return bytesSaved.get(); }
+}
@@ -0,0 +1,217 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * <p>
+ * Declares how one Json collection is stored: the url it is fetched from, the table it goes into,
+ * and for each field kept, its column, whether it is text or an integer, and whether it is
+ * encrypted or indexed.  Fields that are not declared are skipped over by the parser.
+ * </p><p>
+ * The first column is always the collection's "id", stored as the table's _id.  Every table also
+ * has a digest column, for the keyed digest of each row's plaintext.
+ * </p><p>
+ * Encrypted columns may also be declared searchable, in which case the table has a side table of
+ * BlindIndex tokens too.
+ * </p><p>
+ * A blob column is an encrypted column whose values are sealed into a BlobStore instead of the
+ * table, which holds just their offsets and lengths in the columns named by offsetColumn() and
+ * lengthColumn().  Its rows then stay small, however large the values are.
+ * </p><p>
+ * The field names are interned, as Jackson interns the names it parses, so that columnFor() can
+ * match them by identity - without hashing, boxing or allocating anything per field.
+ * </p> */
+final class TableMapping {
+
+    static final String COLUMN_ID = "_id";
+    static final String COLUMN_DIGEST = "digest";
+    // the columns of the token tables.
+    static final String COLUMN_TOKEN = "token";
+    static final String COLUMN_ROW_ID = "row_id";
+
+    static final class Column {
+        final String field;
+        final String name;
+        final boolean text;
+        final boolean encrypted;
+        final boolean indexed;
+        final boolean searchable;
+        final boolean blob;
+
+        private Column(String jsonField, String columnName, boolean isText, boolean isEncrypted
+                                    , boolean isIndexed, boolean isSearchable, boolean isBlob) {
+            field = jsonField.intern();
+            name = columnName;
+            text = isText;
+            encrypted = isEncrypted;
+            indexed = isIndexed;
+            searchable = isSearchable;
+            blob = isBlob;
+        }
+    }
+
+    /** the collection's own id, which becomes the table's primary key. */
+    static Column id(String field) {
+        return new Column( field, COLUMN_ID, false, false, false, false, false );
+    }
+
+    static Column integer(String field, String column, boolean indexed) {
+        return new Column( field, column, false, false, indexed, false, false );
+    }
+
+    static Column text(String field, String column) {
+        return new Column( field, column, true, false, false, false, false );
+    }
+
+    /** a text column that is only ever stored encrypted (so cannot usefully be indexed). */
+    static Column encrypted(String field, String column) {
+        return new Column( field, column, true, true, false, false, false );
+    }
+
+    /** an encrypted text column whose words go into the table's BlindIndex. */
+    static Column searchable(String field, String column) {
+        return new Column( field, column, true, true, false, true, false );
+    }
+
+    /** an encrypted text column kept in a BlobStore, and optionally searchable. */
+    static Column blob(String field, String column, boolean searchable) {
+        return new Column( field, column, true, true, false, searchable, true );
+    }
+
+    /** the table column holding a blob column's offset in the BlobStore. */
+    static String offsetColumn(String column) { return column + "_offset"; }
+
+    /** the table column holding a blob column's sealed length. */
+    static String lengthColumn(String column) { return column + "_length"; }
+
+    final String url;
+    final String table;
+    final Column[] columns;
+    // the columns' field names, in column order, for columnFor() to scan.
+    private final String[] fields;
+    private final boolean searchable;
+    private final boolean blobs;
+
+    TableMapping(String collectionUrl, String tableName, Column... tableColumns) {
+        if ( tableColumns.length == 0 || !COLUMN_ID.equals( tableColumns[ 0 ].name ) )
+            throw new IllegalArgumentException( "The first column of " + tableName + " must be its id." );
+
+        url = collectionUrl;
+        table = tableName;
+        columns = tableColumns;
+        fields = new String[ columns.length ];
+
+        boolean anySearchable = false;
+        boolean anyBlobs = false;
+        for ( int i = 0; i < columns.length; i++ ) {
+            fields[ i ] = columns[ i ].field;
+            anySearchable |= columns[ i ].searchable;
+            anyBlobs |= columns[ i ].blob;
+        }
+        searchable = anySearchable;
+        blobs = anyBlobs;
+    }
+
+    /** true if any column is searchable, so that the table has a token table alongside. */
+    boolean hasSearchIndex() { return searchable; }
+
+    /** true if any column is kept in a BlobStore, which must then be given to BulkRowWriter. */
+    boolean hasBlobs() { return blobs; }
+
+    /** the name of the table of BlindIndex tokens for this one. */
+    String tokenTable() { return table + "_tokens"; }
+
+    /** <p>
+     *  returns the index of the column for the given Json field name, or -1 if it is not stored.
+     *  </p><p>
+     *  The first pass compares references only, which is all that is needed for names from a
+     *  parser that interns them; the second catches names from any other source.
+     *  </p> */
+    int columnFor(String field) {
+        for ( int i = 0; i < fields.length; i++ )
+            if ( fields[ i ] == field ) return i;
+
+        for ( int i = 0; i < fields.length; i++ )
+            if ( fields[ i ].equals( field ) ) return i;
+
+        return -1;
+    }
+
+    /** the names of the table's columns, in column order (not including the digest) - NB a blob
+     *  column's name is not a column of the table. */
+    String[] columnNames() {
+        String[] names = new String[ columns.length ];
+        for ( int i = 0; i < columns.length; i++ ) names[ i ] = columns[ i ].name;
+        return names;
+    }
+
+    /** creates the table, and its indexes. */
+    void create(SQLiteDatabase db) {
+        StringBuilder sql = new StringBuilder( "CREATE TABLE " ).append( table ).append( " (" );
+
+        for ( Column each : columns ) {
+            if ( each.blob ) {
+                sql.append( offsetColumn( each.name ) ).append( " INTEGER, " )
+                   .append( lengthColumn( each.name ) ).append( " INTEGER, " );
+                continue;
+            }
+            sql.append( each.name ).append( each.text ? " TEXT" : " INTEGER" );
+            if ( each.name.equals( COLUMN_ID ) ) sql.append( " PRIMARY KEY" );
+            sql.append( ", " );
+        }
+        db.execSQL( sql.append( COLUMN_DIGEST ).append( " INTEGER )" ).toString() );
+
+        for ( Column each : columns )
+            if ( each.indexed ) GetItemsService.Migration.createIndex( db, table, each.name );
+
+        if ( searchable ) createTokenTable( db );
+    }
+
+    /** creates the token table, indexed both for searches and for replacing a row's tokens. */
+    void createTokenTable(SQLiteDatabase db) {
+        db.execSQL( "CREATE TABLE " + tokenTable()
+                        + " (" + COLUMN_TOKEN + " INTEGER NOT NULL, " + COLUMN_ROW_ID + " INTEGER NOT NULL )" );
+        GetItemsService.Migration.createIndex( db, tokenTable(), COLUMN_TOKEN );
+        GetItemsService.Migration.createIndex( db, tokenTable(), COLUMN_ROW_ID );
+    }
+
+    /** deletes every row from the table, and its tokens. */
+    void clear(SQLiteDatabase db) {
+        db.delete( table, null, null );
+        if ( searchable ) db.delete( tokenTable(), null, null );
+    }
+
+    /** an insert statement binding a token, then the id of its row. */
+    String insertTokenSql() {
+        return "INSERT INTO " + tokenTable() + " (" + COLUMN_TOKEN + ", " + COLUMN_ROW_ID + ") VALUES (?, ?)";
+    }
+
+    /** a delete statement that binds the id of the row whose tokens are to go. */
+    String deleteTokensSql() {
+        return "DELETE FROM " + tokenTable() + " WHERE " + COLUMN_ROW_ID + " = ?";
+    }
+
+    /** an insert (or replace) statement that binds every column in order - a blob column as its
+     *  offset then its length - then the digest. */
+    String upsertSql() {
+        StringBuilder sql = new StringBuilder( "INSERT OR REPLACE INTO " ).append( table ).append( "(" );
+        StringBuilder values = new StringBuilder( ") VALUES (" );
+
+        for ( Column each : columns ) {
+            if ( each.blob ) {
+                sql.append( offsetColumn( each.name ) ).append( ", " )
+                   .append( lengthColumn( each.name ) ).append( ", " );
+                values.append( "?, ?, " );
+                continue;
+            }
+            sql.append( each.name ).append( ", " );
+            values.append( "?, " );
+        }
+        return sql.append( COLUMN_DIGEST ).append( values ).append( "?)" ).toString();
+    }
+
+    /** a delete statement that binds the id. */
+    String deleteSql() {
+        return "DELETE FROM " + table + " WHERE " + COLUMN_ID + " = ?";
+    }
+}
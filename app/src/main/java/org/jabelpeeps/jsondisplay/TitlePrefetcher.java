@@ -0,0 +1,112 @@
+package org.jabelpeeps.jsondisplay;
+
+import android.database.Cursor;
+import android.os.Process;
+import android.widget.AbsListView;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * Watches the scrolling of the listView, and decrypts the titles just beyond the visible rows on a
+ * background thread, so that by the time they are bound the adapter finds them in the service's
+ * title cache instead of decrypting them inside a frame callback.
+ * </p><p>
+ * While scrolling, the rows ahead in the direction of travel are prefetched; once the list comes to
+ * rest, the rows on both sides of the visible ones are.  The cursor is only read on the UI thread
+ * (where the adapter also uses it) - just the decryption is handed to the background.
+ * </p> */
+final class TitlePrefetcher implements AbsListView.OnScrollListener {
+
+    /** the default number of titles to prefetch beyond the visible rows. */
+    static final int DEFAULT_DISTANCE = 20;
+
+    private final ItemLoaderFragment.PostAdapter adapter;
+    private final ExecutorService background = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        @Override public Thread newThread(final Runnable runnable) {
+            return new Thread( new Runnable() {
+                @Override public void run() {
+                    Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+                    runnable.run();
+                }
+            }, "TitlePrefetcher" );
+        }
+    } );
+
+    private int distance = DEFAULT_DISTANCE;
+    private int lastFirstVisible = -1;
+    private int scrollState = SCROLL_STATE_IDLE;
+    /** the most recently submitted batch - superseded as soon as the list has moved on. */
+    private Future<?> pending;
+
+    TitlePrefetcher(ItemLoaderFragment.PostAdapter postAdapter) { adapter = postAdapter; }
+
+    /** sets how many titles beyond the visible rows are decrypted ahead of time (0 disables prefetch). */
+    void setDistance(int titles) {
+        if ( titles < 0 ) throw new IllegalArgumentException( "Prefetch distance cannot be negative." );
+        distance = titles;
+    }
+
+    int getDistance() { return distance; }
+
+    @Override public void onScrollStateChanged(AbsListView view, int state) {
+        scrollState = state;
+
+        // at rest, fill in on both sides of the visible rows.
+        if ( state == SCROLL_STATE_IDLE ) {
+            int first = view.getFirstVisiblePosition();
+            int visible = view.getChildCount();
+            prefetch( first - distance, first + visible + distance );
+        }
+    }
+
+    @Override public void onScroll(AbsListView view, int first, int visible, int total) {
+        // this is called for every frame of a scroll, so only act when the rows have actually moved.
+        if ( first == lastFirstVisible || visible == 0 ) return;
+
+        boolean downwards = first > lastFirstVisible;
+        lastFirstVisible = first;
+
+        if ( scrollState == SCROLL_STATE_IDLE ) return;
+
+        if ( downwards ) prefetch( first + visible, first + visible + distance );
+        else prefetch( first - distance, first );
+    }
+
+    /** stops the background thread - call when the list is being destroyed. */
+    void shutdown() {
+        background.shutdownNow();
+    }
+
+    // reads the encrypted titles for rows [from, to) on the UI thread, and decrypts them on the background.
+    private void prefetch(int from, int to) {
+        Cursor cursor = adapter.getCursor();
+        if ( distance == 0 || cursor == null || cursor.isClosed() ) return;
+
+        from = Math.max( from, 0 );
+        to = Math.min( to, cursor.getCount() );
+        if ( from >= to ) return;
+
+        final int[] ids = new int[ to - from ];
+        final String[] scrambled = new String[ to - from ];
+
+        int saved = cursor.getPosition();
+        for ( int i = 0; i < ids.length; i++ ) {
+            cursor.moveToPosition( from + i );
+            ids[ i ] = cursor.getInt( GetItemsService.COLUMN_POST_ID_INDEX );
+            scrambled[ i ] = cursor.getString( GetItemsService.COLUMN_TITLE_INDEX );
+        }
+        cursor.moveToPosition( saved );
+
+        if ( pending != null ) pending.cancel( false );
+
+        pending = background.submit( new Runnable() {
+            @Override public void run() {
+                adapter.warmTitles( ids, scrambled );
+            }
+        } );
+    }
+}
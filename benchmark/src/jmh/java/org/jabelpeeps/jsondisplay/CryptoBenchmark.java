@@ -0,0 +1,58 @@
+package org.jabelpeeps.jsondisplay;
+
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+import com.tozny.crypto.android.AesCbcWithIntegrity.CipherTextIvMac;
+import com.tozny.crypto.android.AesCbcWithIntegrity.SecretKeys;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * AesCbcWithIntegrity itself, as CbcHmacEngine calls it: encrypting and decrypting title- and
+ * body-sized Strings, and parsing the key String saved in SecurePreferences with keys().
+ * </p> */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class CryptoBenchmark {
+
+    /** the length of the plaintext - a post's title, or its body. */
+    @Param( { "" + SyntheticPosts.TITLE_LENGTH, "" + SyntheticPosts.BODY_LENGTH } )
+    public int length;
+
+    private SecretKeys keys;
+    private String keyString;
+    private String plaintext;
+    private String ciphertext;
+
+    @Setup public void setUp() throws GeneralSecurityException, UnsupportedEncodingException {
+        keys = AesCbcWithIntegrity.generateKey();
+        keyString = AesCbcWithIntegrity.keyString( keys );
+        plaintext = SyntheticPosts.text( new Random( 7 ), length );
+        ciphertext = encrypt();
+    }
+
+    @Benchmark public String encrypt() throws GeneralSecurityException, UnsupportedEncodingException {
+        return AesCbcWithIntegrity.encrypt( plaintext, keys ).toString();
+    }
+
+    @Benchmark public String decrypt() throws GeneralSecurityException, UnsupportedEncodingException {
+        return AesCbcWithIntegrity.decryptString( new CipherTextIvMac( ciphertext ), keys );
+    }
+
+    @Benchmark public SecretKeys parseKeys() throws GeneralSecurityException {
+        return AesCbcWithIntegrity.keys( keyString );
+    }
+}
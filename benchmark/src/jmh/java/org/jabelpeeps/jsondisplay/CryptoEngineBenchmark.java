@@ -0,0 +1,76 @@
+package org.jabelpeeps.jsondisplay;
+
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+/**
+ * <p>
+ * GcmEngine against CbcHmacEngine, each called through CryptoEngine as SessionCrypto calls it, on
+ * the title and body lengths of the posts: encrypt() and decrypt() for the values kept in the db,
+ * and seal() and open() for those kept in a BlobStore.
+ * </p><p>
+ * Both engines keep a Cipher (and a Mac) per thread.  The state is per thread too, so running
+ * with -t N measures them under contention as well.
+ * </p> */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class CryptoEngineBenchmark {
+
+    @Param( { "cbc-hmac", "gcm" } )
+    public String engine;
+
+    /** the length of the plaintext - a post's title, or its body. */
+    @Param( { "" + SyntheticPosts.TITLE_LENGTH, "" + SyntheticPosts.BODY_LENGTH } )
+    public int length;
+
+    private CryptoEngine crypto;
+    private String plaintext;
+    private String ciphertext;
+    private ByteBuffer sealed;
+
+    @Setup public void setUp() throws GeneralSecurityException, UnsupportedEncodingException {
+        if ( engine.equals( "gcm" ) ) {
+            KeyGenerator generator = KeyGenerator.getInstance( "AES" );
+            generator.init( 128 );
+            crypto = new GcmEngine( generator.generateKey() );
+        }
+        else crypto = new CbcHmacEngine( AesCbcWithIntegrity.generateKey() );
+
+        plaintext = SyntheticPosts.text( new Random( 7 ), length );
+        ciphertext = crypto.encrypt( plaintext );
+        sealed = ByteBuffer.wrap( crypto.seal( plaintext ) );
+    }
+
+    @Benchmark public String encrypt() throws GeneralSecurityException, UnsupportedEncodingException {
+        return crypto.encrypt( plaintext );
+    }
+
+    @Benchmark public String decrypt() throws GeneralSecurityException, UnsupportedEncodingException {
+        return crypto.decrypt( ciphertext );
+    }
+
+    @Benchmark public byte[] seal() throws GeneralSecurityException {
+        return crypto.seal( plaintext );
+    }
+
+    @Benchmark public String open() throws GeneralSecurityException {
+        return crypto.open( sealed );
+    }
+}
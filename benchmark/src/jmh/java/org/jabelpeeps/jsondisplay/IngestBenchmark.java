@@ -0,0 +1,58 @@
+package org.jabelpeeps.jsondisplay;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * The parse, digest and encrypt stages of ingest together, as IngestPipeline.run() takes a full
+ * reload of the posts through them - serially, or pipelined across a pool of encryption workers,
+ * and with either engine writing.
+ * </p><p>
+ * Less ParseBenchmark's time for the same number of posts, this is the cost of the digests and
+ * encryption.
+ * </p> */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+public class IngestBenchmark {
+
+    @Param( { "100", "10000", "1000000" } )
+    public int posts;
+
+    /** the size of the encryption pool, or 0 for the serial path. */
+    @Param( { "0", "4" } )
+    public int workers;
+
+    /** true to write with GcmEngine, rather than CbcHmacEngine. */
+    @Param( { "false", "true" } )
+    public boolean gcm;
+
+    private IngestPipeline pipeline;
+
+    @Setup public void setUp() throws GeneralSecurityException {
+        SessionCrypto crypto = new SessionCrypto();
+        crypto.setGcm( gcm );
+        crypto.newKey();
+        pipeline = new IngestPipeline( Endpoints.POSTS, crypto, null, workers );
+    }
+
+    @Benchmark public int run(Blackhole blackhole) throws IOException, GeneralSecurityException {
+        try ( JsonParser json = ParseBenchmark.JSON_FACTORY.createParser( SyntheticPosts.array( posts ) ) ) {
+            return pipeline.run( json, ParseBenchmark.into( blackhole ) );
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.jabelpeeps.jsondisplay;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * The parsing stage of ingest: IngestPipeline.skim() streams a posts array through Jackson, and
+ * dispatches each field to its column in Endpoints.POSTS - with nothing digested or encrypted.
+ * </p><p>
+ * IngestBenchmark runs the same arrays through the whole of run(), for the cost of the later stages.
+ * </p> */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+public class ParseBenchmark {
+
+    static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @Param( { "100", "10000", "1000000" } )
+    public int posts;
+
+    private IngestPipeline pipeline;
+
+    @Setup public void setUp() {
+        pipeline = new IngestPipeline( Endpoints.POSTS, new SessionCrypto(), null, 0 );
+    }
+
+    /** a sink that hands each record to the blackhole, in place of BulkRowWriter. */
+    static IngestPipeline.RecordSink into(final Blackhole blackhole) {
+        return new IngestPipeline.RecordSink() {
+            @Override public void write(IngestPipeline.Record record) {
+                blackhole.consume( record );
+            }
+        };
+    }
+
+    @Benchmark public int skim(Blackhole blackhole) throws IOException {
+        try ( JsonParser json = JSON_FACTORY.createParser( SyntheticPosts.array( posts ) ) ) {
+            return pipeline.skim( json, into( blackhole ) );
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.jabelpeeps.jsondisplay;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * <p>
+ * Generates Json post arrays shaped like the ones GetItemsService downloads - the same four fields,
+ * with titles and bodies of similar lengths to the real data.
+ * </p><p>
+ * A large array is served as a repeated block of distinct posts, rather than being held in memory
+ * whole, so that a million-post dataset costs no more heap than a thousand-post one.
+ * </p> */
+final class SyntheticPosts {
+
+    /** the number of distinct posts in each repeated block. */
+    static final int BLOCK_SIZE = 1000;
+
+    static final int TITLE_LENGTH = 60;
+    static final int BODY_LENGTH = 200;
+
+    private static final String[] WORDS = ( "sunt aut facere repellat provident occaecati excepturi "
+            + "optio reprehenderit qui est esse ea molestias quasi exercitationem eum et iusto sed "
+            + "quo iure voluptatem occaecati omnis eligendi aut ad dolorem" ).split( " " );
+
+    private SyntheticPosts() {}
+
+    /** a String of words, of roughly the given length. */
+    static String text(Random random, int length) {
+        StringBuilder text = new StringBuilder( length + 16 );
+        while ( text.length() < length ) {
+            if ( text.length() > 0 ) text.append( ' ' );
+            text.append( WORDS[ random.nextInt( WORDS.length ) ] );
+        }
+        return text.toString();
+    }
+
+    /** the given number of post objects, separated by commas - with no enclosing array. */
+    static byte[] block(int posts, long seed) {
+        Random random = new Random( seed );
+        StringBuilder json = new StringBuilder( posts * ( TITLE_LENGTH + BODY_LENGTH + 64 ) );
+
+        for ( int id = 1; id <= posts; id++ ) {
+            if ( id > 1 ) json.append( ",\n" );
+            json.append( "{\"userId\":" ).append( 1 + id / 10 )
+                .append( ",\"id\":" ).append( id )
+                .append( ",\"title\":\"" ).append( text( random, TITLE_LENGTH ) )
+                .append( "\",\"body\":\"" ).append( text( random, BODY_LENGTH ) )
+                .append( "\"}" );
+        }
+        return json.toString().getBytes( StandardCharsets.UTF_8 );
+    }
+
+    /** a Json array of the given number of posts. */
+    static InputStream array(int posts) {
+        int fullBlocks = posts / BLOCK_SIZE;
+        int remainder = posts % BLOCK_SIZE;
+
+        return new ArrayStream( block( Math.min( posts, BLOCK_SIZE ), 42 )
+                              , fullBlocks, ( remainder == 0 ) ? null : block( remainder, 42 ) );
+    }
+
+    /** streams "[", then the block repeated, then the tail (if any), then "]" - with commas between. */
+    private static final class ArrayStream extends InputStream {
+        private static final byte[] OPEN = { '[' };
+        private static final byte[] COMMA = { ',' };
+        private static final byte[] CLOSE = { ']' };
+
+        private final byte[][] segments;
+        private int segment = 0;
+        private int offset = 0;
+
+        ArrayStream(byte[] block, int repeats, byte[] tail) {
+            int parts = repeats + ( tail == null ? 0 : 1 );
+            segments = new byte[ Math.max( 0, parts * 2 - 1 ) + 2 ][];
+
+            int i = 0;
+            segments[ i++ ] = OPEN;
+            for ( int r = 0; r < repeats; r++ ) {
+                if ( r > 0 ) segments[ i++ ] = COMMA;
+                segments[ i++ ] = block;
+            }
+            if ( tail != null ) {
+                if ( repeats > 0 ) segments[ i++ ] = COMMA;
+                segments[ i++ ] = tail;
+            }
+            segments[ i ] = CLOSE;
+        }
+
+        @Override public int read() {
+            byte[] one = new byte[ 1 ];
+            return ( read( one, 0, 1 ) == -1 ) ? -1 : one[ 0 ] & 0xff;
+        }
+
+        @Override public int read(byte[] buffer, int start, int length) {
+            while ( segment < segments.length && offset == segments[ segment ].length ) {
+                segment++;
+                offset = 0;
+            }
+            if ( segment == segments.length ) return -1;
+
+            int count = Math.min( length, segments[ segment ].length - offset );
+            System.arraycopy( segments[ segment ], offset, buffer, start, count );
+            offset += count;
+            return count;
+        }
+    }
+}
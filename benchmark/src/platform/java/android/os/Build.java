@@ -0,0 +1,15 @@
+package android.os;
+
+/** The JVM's stand-in for android.os.Build - a device on the app's target API level. */
+public class Build {
+
+    private Build() {}
+
+    public static class VERSION {
+        public static final int SDK_INT = 22;
+    }
+
+    public static class VERSION_CODES {
+        public static final int KITKAT = 19;
+    }
+}
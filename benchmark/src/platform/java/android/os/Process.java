@@ -0,0 +1,11 @@
+package android.os;
+
+/** The JVM's stand-in for android.os.Process - thread priorities are left to the JVM. */
+public class Process {
+
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    private Process() {}
+
+    public static void setThreadPriority(int priority) {}
+}
@@ -0,0 +1,9 @@
+package android.os;
+
+/** The JVM's stand-in for android.os.SystemClock, as read by ServiceMetrics. */
+public class SystemClock {
+
+    private SystemClock() {}
+
+    public static long elapsedRealtime() { return System.nanoTime() / 1000000; }
+}
@@ -0,0 +1,34 @@
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * The JVM's stand-in for android.util.Base64, covering the calls made by GcmEngine and
+ * AesCbcWithIntegrity - standard Base64, with the line breaks of DEFAULT unless NO_WRAP is set.
+ */
+public class Base64 {
+
+    public static final int DEFAULT = 0;
+    public static final int NO_WRAP = 2;
+
+    private static final java.util.Base64.Encoder LINES =
+                java.util.Base64.getMimeEncoder( 76, new byte[] { '\n' } );
+
+    private Base64() {}
+
+    public static String encodeToString(byte[] input, int flags) {
+        return encodeToString( input, 0, input.length, flags );
+    }
+
+    public static String encodeToString(byte[] input, int offset, int length, int flags) {
+        byte[] bytes = Arrays.copyOfRange( input, offset, offset + length );
+
+        if ( ( flags & NO_WRAP ) != 0 ) return java.util.Base64.getEncoder().encodeToString( bytes );
+        return LINES.encodeToString( bytes ) + "\n";
+    }
+
+    /** reads either form - the MIME decoder skips the line breaks. */
+    public static byte[] decode(String input, int flags) {
+        return java.util.Base64.getMimeDecoder().decode( input );
+    }
+}